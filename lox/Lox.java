@@ -1,20 +1,32 @@
 package lox;
 
+import lox.ast.LazyBody;
+import lox.cache.ScriptCache;
 import lox.ast.Stmt;
 import lox.interpreter.Interpreter;
+import lox.jit.Jit;
+import lox.nodes.NodeInterpreter;
+import lox.optimizer.Optimizer;
 import lox.parser.Parser;
+import lox.profile.Profile;
 import lox.resolver.Resolver;
+import lox.runtime.PropertyCache;
 import lox.scanner.Scanner;
 import lox.scanner.Token;
+import lox.util.ContentHash;
 import lox.util.RuntimeError;
 import lox.util.TokenType;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
@@ -22,22 +34,72 @@ public class Lox {
     static boolean hadRuntimeError = false;
 
     private static final Interpreter interpreter = new Interpreter();
+    private static NodeInterpreter nodes = null; // Set by --nodes to run compiled node trees.
+    private static boolean lazy = false; // Set by --lazy to read function bodies on first call.
+    private static Path script = null; // The file being run; profiles are kept next to it.
+    private static String hash = null; // Its ContentHash, which keys its profile and cache entry.
+    private static Profile profile = null;
+    private static List<String> deferred = null; // Where errors go while they are held back.
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
+        LazyBody.useCompiler(Lox::compileBody);
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--nodes")) {
+                nodes = new NodeInterpreter();
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.size() > 1) {
+            System.out.println("Usage: jlox [--nodes | --lazy] [script]");
             System.exit(64);
         }
-        else if (args.length == 1) {
-            runFile(args[0]);
+        else if (files.size() == 1) {
+            runFile(files.get(0));
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String filepath) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(filepath));
+        script = Paths.get(filepath);
+        Charset charset = Charset.defaultCharset();
+        hash = ContentHash.of(script, charset);
+        ScriptCache cache = new ScriptCache(script, hash);
+
+        List<Stmt> statements = cache.load();
+        if (statements != null) {
+            profile = Profile.load(script, hash, statements);
+        } else if (skipsBodies()) {
+            // An entry must hold a program known to be free of errors, and
+            // profile sites are numbered across every body, so a program
+            // with bodies left unread gets neither.
+            try (Reader reader = new InputStreamReader(Files.newInputStream(script), charset)) {
+                statements = compile(new Scanner(reader), null);
+            }
+        } else {
+            ScriptCache.Writer writer = cache.writer();
+            String scanned = null;
+            // Decoded as it is scanned rather than read into memory first, and
+            // hashed on the way, as the script may have changed since it was
+            // hashed to look for a cache entry.
+            try (DigestInputStream in = ContentHash.digesting(Files.newInputStream(script), charset);
+                 Reader reader = new InputStreamReader(in, charset)) {
+                statements = compile(new Scanner(reader), writer);
+                scanned = ContentHash.of(in);
+            } finally {
+                writer.finish(statements != null, scanned);
+            }
+            hash = scanned;
+            if (statements != null) profile = Profile.load(script, hash, statements);
+        }
 
-        run(new String(bytes, Charset.defaultCharset()));
+        if (statements != null) run(statements);
+        if (profile != null) profile.save();
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
@@ -50,34 +112,93 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            List<Stmt> statements = compile(new Scanner(line), null);
+            if (statements != null) run(statements);
             if (hadError) System.exit(65);
         }
     }
 
-    private static void run(String source)  {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static boolean treeWalks() {
+        return nodes == null;
+    }
 
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+    // With --lazy, the tree-walker leaves function bodies as tokens until
+    // first called, so errors in them only show if they run.
+    private static boolean skipsBodies() {
+        return lazy && treeWalks();
+    }
 
-        if (hadError) return;
+    // The program ready to run, or null if it has errors. Each top-level
+    // declaration is resolved and optimized as soon as it is parsed, then
+    // added to the cache entry being written, if any. Syntax errors come
+    // first: resolver errors wait until the whole program has parsed, and
+    // are only reported if it did without any.
+    private static List<Stmt> compile(Scanner scanner, ScriptCache.Writer cache) {
+        Parser parser = new Parser(scanner, skipsBodies());
+        Resolver resolver = new Resolver();
+        Optimizer optimizer = new Optimizer();
+        List<Stmt> statements = new ArrayList<>();
+        List<String> resolverErrors = new ArrayList<>();
+
+        while (parser.hasNext()) {
+            Stmt statement = parser.next();
+            if (hadError) continue; // Only further syntax errors matter now.
+
+            deferred = resolverErrors;
+            resolver.resolve(statement);
+            deferred = null;
+            if (!resolverErrors.isEmpty()) continue; // The program won't run.
+
+            statement = optimizer.optimize(statement);
+            if (statement == null) continue;
+            if (cache != null) cache.add(statement);
+            statements.add(statement);
+        }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        if (hadError) return null;
 
-        if (hadError) return; // Checks for resolver errors
+        for (String error : resolverErrors) {
+            System.out.println(error);
+            hadError = true;
+        }
+        if (hadError) return null; // Checks for resolver errors
 
-        if (statements.size() == 1 && statements.get(0) instanceof Stmt.Expression) {
-            Object value = interpreter.evaluate(((Stmt.Expression) statements.get(0)).expression);
+        return statements;
+    }
+
+    // A skipped body, parsed, resolved and optimized when its function is
+    // first called. Its errors are reported as they would have been up front
+    // and end the run.
+    private static List<Stmt> compileBody(LazyBody body) {
+        List<Stmt> statements = Parser.parseBody(body);
+        if (!hadError) new Resolver().resolveBody(body, statements);
+        if (hadError) throw new RuntimeError(body.function.name, "Function '" + body.function.name.lexeme + "' has errors.");
+        return new Optimizer().optimize(statements);
+    }
+
+    private static void run(List<Stmt> statements) {
+        if (profile != null) {
+            Jit.useProfile(profile);
+            PropertyCache.useProfile(profile);
+            if (nodes != null) nodes.useProfile(profile);
+        }
 
-            if (value != null) {
-                System.out.println(interpreter.stringify(value));
+        // A lone expression, as typed at the prompt, prints its value.
+        if (statements.size() == 1 && statements.get(0) instanceof Stmt.Expression) {
+            Stmt.Expression statement = (Stmt.Expression) statements.get(0);
+            if (nodes != null) {
+                nodes.echo(statement);
+            } else {
+                interpreter.echo(statement);
             }
+            return;
         }
 
-        interpreter.interpret(statements);
+        if (nodes != null) {
+            nodes.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
     // Error
@@ -99,7 +220,12 @@ public class Lox {
     }
 
     private static void report(int line, String where, String message) {
-        System.out.println("[line " + line + "] " + where + ": " + message);
+        String error = "[line " + line + "] " + where + ": " + message;
+        if (deferred != null) {
+            deferred.add(error);
+            return;
+        }
+        System.out.println(error);
         hadError = true;
     }
 }
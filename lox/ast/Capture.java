@@ -0,0 +1,16 @@
+package lox.ast;
+
+// Where a new closure finds one of its upvalues: the box in a local of the
+// code creating it, at (depth, slot), or an upvalue of the function that
+// code is running in.
+public final class Capture {
+    public final boolean local;
+    public final int depth;
+    public final int index;
+
+    public Capture(boolean local, int depth, int index) {
+        this.local = local;
+        this.depth = depth;
+        this.index = index;
+    }
+}
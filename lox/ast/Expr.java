@@ -26,6 +26,11 @@ public abstract class Expr {
 
         public final Token name;
         public final Expr value;
+        public int depth = -1;
+        public int slot;
+        public boolean boxed;
+        public int upvalue = -1;
+        public Object global;
         public Assign(Token name, Expr value) {
             this.name = name;
             this.value = value;
@@ -42,6 +47,7 @@ public abstract class Expr {
         public final Expr left;
         public final Token operator;
         public final Expr right;
+        public boolean numeric;
         public Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -75,6 +81,7 @@ public abstract class Expr {
 
         public final Expr object;
         public final Token name;
+        public Object cache;
         public Get(Expr object, Token name) {
             this.object = object;
             this.name = name;
@@ -91,6 +98,7 @@ public abstract class Expr {
         public final Expr object;
         public final Token name;
         public final Expr value;
+        public Object cache;
         public Set(Expr object, Token name, Expr value) {
             this.object = object;
             this.name = name;
@@ -107,6 +115,8 @@ public abstract class Expr {
 
         public final Token keyword;
         public final Token method;
+        public int upvalue = -1;
+        public LoxThis receiver;
         public LoxSuper(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
@@ -121,6 +131,10 @@ public abstract class Expr {
     public static class LoxThis extends Expr {
 
         public final Token keyword;
+        public int depth = -1;
+        public int slot;
+        public boolean boxed;
+        public int upvalue = -1;
         public LoxThis(Token keyword) {
             this.keyword = keyword;
         }
@@ -209,6 +223,11 @@ public abstract class Expr {
     public static class Variable extends Expr {
 
         public final Token name;
+        public int depth = -1;
+        public int slot;
+        public boolean boxed;
+        public int upvalue = -1;
+        public Object global;
         public Variable(Token name) {
             this.name = name;
         }
@@ -0,0 +1,157 @@
+package lox.ast;
+
+import lox.scanner.Token;
+import lox.util.ClassType;
+import lox.util.FunctionType;
+import lox.util.TokenType;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+// The body of a function the parser skipped over, kept as its tokens until
+// it is first read, when the function is first called. It is then parsed,
+// resolved the way it would have been where the function was declared and
+// optimized, by the compiler set here. Errors in it are found only then.
+//
+// Only functions at the top level and the methods of top-level classes are
+// skipped. All they can capture from around them is "super", so a closure
+// of one can be made before its body is read.
+//
+// Tokens are packed two ints apiece: the index of the lexeme in a pool the
+// bodies of a program share, then the line and type. A literal is worked
+// out again from its lexeme.
+public final class LazyBody extends AbstractList<Stmt> {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private static Function<LazyBody, List<Stmt>> compiler = null;
+
+    // From the brace after the parameters to the matching one. Dropped once
+    // the body is compiled.
+    private int[] code;
+    private final List<String> lexemes;
+
+    public Stmt.Function function; // The declaration this is the body of.
+
+    // Where the function was declared, noted by the resolver.
+    public FunctionType type;
+    public ClassType classType;
+
+    private List<Stmt> statements = null;
+
+    private LazyBody(int[] code, List<String> lexemes) {
+        this.code = code;
+        this.lexemes = lexemes;
+    }
+
+    public static void useCompiler(Function<LazyBody, List<Stmt>> compiler) {
+        LazyBody.compiler = compiler;
+    }
+
+    // The body's tokens, ending with an EOF on the line of its closing brace.
+    public Iterator<Token> tokens() {
+        return new Iterator<Token>() {
+            private int at = 0;
+
+            @Override
+            public boolean hasNext() {
+                return at <= code.length;
+            }
+
+            @Override
+            public Token next() {
+                if (at > code.length) throw new NoSuchElementException();
+                if (at == code.length) {
+                    at += 2;
+                    return new Token(TokenType.EOF, "", null, code[code.length - 1] >>> 8);
+                }
+                Token token = token(at);
+                at += 2;
+                return token;
+            }
+        };
+    }
+
+    private Token token(int at) {
+        TokenType type = TOKEN_TYPES[code[at + 1] & 0xff];
+        String lexeme = lexemes.get(code[at]);
+        Object literal = null;
+        if (type == TokenType.NUMBER) {
+            literal = Double.parseDouble(lexeme);
+        } else if (type == TokenType.STRING) {
+            literal = lexeme.substring(1, lexeme.length() - 1);
+        }
+        return new Token(type, lexeme, literal, code[at + 1] >>> 8);
+    }
+
+    public boolean mentionsSuper() {
+        for (int at = 0; at < code.length; at += 2) {
+            if ((code[at + 1] & 0xff) == TokenType.SUPER.ordinal()) return true;
+        }
+        return false;
+    }
+
+    // Also settles the frame the function needs, so it is called before the
+    // function first runs rather than left to the first read of a statement.
+    public void compile() {
+        if (statements == null) {
+            statements = compiler.apply(this);
+            code = null;
+        }
+    }
+
+    @Override
+    public Stmt get(int index) {
+        compile();
+        return statements.get(index);
+    }
+
+    @Override
+    public int size() {
+        compile();
+        return statements.size();
+    }
+
+    @Override
+    public Iterator<Stmt> iterator() {
+        compile();
+        return statements.iterator();
+    }
+
+    // Packs the tokens of the bodies one parser skips.
+    public static final class Recorder {
+        private final List<String> lexemes = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int[] code = new int[64];
+        private int size = 0;
+
+        public void add(Token token) {
+            if (size + 2 > code.length) code = Arrays.copyOf(code, code.length * 2);
+            code[size++] = lexeme(token.lexeme);
+            code[size++] = token.line << 8 | token.type.ordinal();
+        }
+
+        // The body of the tokens added since the last one.
+        public LazyBody finish() {
+            LazyBody body = new LazyBody(Arrays.copyOf(code, size), lexemes);
+            size = 0;
+            return body;
+        }
+
+        private int lexeme(String lexeme) {
+            Integer index = indices.get(lexeme);
+            if (index == null) {
+                index = lexemes.size();
+                lexemes.add(lexeme);
+                indices.put(lexeme, index);
+            }
+            return index;
+        }
+    }
+}
@@ -21,6 +21,7 @@ public abstract class Stmt {
     public static class Block extends Stmt {
 
         public final List<Stmt> statements;
+        public boolean scoped;
         public Block(List<Stmt> statements) {
             this.statements = statements;
         }
@@ -37,6 +38,8 @@ public abstract class Stmt {
         public final Expr.Variable superclass;
         public final List<Stmt.Function> methods;
         public final List<Stmt.Function> staticMethods;
+        public int slot = -1;
+        public boolean boxed;
         public ClassDef(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
             this.name = name;
             this.superclass = superclass;
@@ -68,6 +71,11 @@ public abstract class Stmt {
         public final Token name;
         public final List<Token> params;
         public final List<Stmt> body;
+        public int slot = -1;
+        public boolean boxed;
+        public boolean scoped;
+        public Capture[] captures;
+        public int[] boxedParams;
         public Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
@@ -114,6 +122,7 @@ public abstract class Stmt {
 
         public final Token keyword;
         public final Expr value;
+        public boolean tailCall;
         public ReturnStmt(Token keyword, Expr value) {
             this.keyword = keyword;
             this.value = value;
@@ -129,6 +138,8 @@ public abstract class Stmt {
 
         public final Token name;
         public final Expr initializer;
+        public int slot = -1;
+        public boolean boxed;
         public Var(Token name, Expr initializer) {
             this.name = name;
             this.initializer = initializer;
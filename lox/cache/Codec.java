@@ -0,0 +1,581 @@
+package lox.cache;
+
+import lox.ast.Capture;
+import lox.ast.Expr;
+import lox.ast.Stmt;
+import lox.scanner.Token;
+import lox.util.TokenType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// How a cache entry stores a resolved statement: as records in one int
+// array, with lexemes and literal values in a constant pool shared by the
+// whole program, so a name or number used all over it is stored once. A
+// record refers to its children by their index in the array.
+//
+// Every record starts with a header: its kind in the low five bits, the
+// node's boolean state in the next two and the record's length in ints
+// from bit 8. A token takes two ints, its lexeme's constant and its line
+// and type packed together. Children are written before their parents, so
+// the statement's own record comes last.
+final class Codec {
+    private static final int ASSIGN = 0;
+    private static final int BINARY = 1;
+    private static final int CALL = 2;
+    private static final int GET = 3;
+    private static final int SET = 4;
+    private static final int SUPER = 5;
+    private static final int THIS = 6;
+    private static final int GROUPING = 7;
+    private static final int LITERAL = 8;
+    private static final int LOGICAL = 9;
+    private static final int UNARY = 10;
+    private static final int TERNARY = 11;
+    private static final int VARIABLE = 12;
+    private static final int BLOCK = 13;
+    private static final int CLASS = 14;
+    private static final int EXPRESSION = 15;
+    private static final int FUNCTION = 16;
+    private static final int IF = 17;
+    private static final int PRINT = 18;
+    private static final int RETURN = 19;
+    private static final int VAR = 20;
+    private static final int WHILE = 21;
+
+    private static final int KIND = 0x1f;
+    private static final int FIRST = 1 << 5; // boxed, numeric, scoped or tailCall
+    private static final int SECOND = 1 << 6; // a function's scoped
+    private static final int LENGTH_SHIFT = 8;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> indices = new HashMap<>();
+
+    // Builds the statement encoded last in the records.
+    static Stmt decode(int[] code, List<Object> constants) {
+        int root = 0;
+        for (int at = 0; at < code.length; at += code[at] >>> LENGTH_SHIFT) {
+            root = at;
+        }
+        return new Decoder(code, constants).stmt(root);
+    }
+
+    // The statement's records, its own last.
+    int[] encode(Stmt statement) {
+        Encoder encoder = new Encoder(this);
+        statement.accept(encoder);
+        return encoder.finish();
+    }
+
+    // Grows as statements are encoded; earlier indices never change.
+    List<Object> constants() {
+        return Collections.unmodifiableList(constants);
+    }
+
+    private int constant(Object value) {
+        Integer index = indices.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            indices.put(value, index);
+        }
+        return index;
+    }
+
+    private static final class Decoder {
+        private final int[] code;
+        private final List<Object> constants;
+
+        Decoder(int[] code, List<Object> constants) {
+            this.code = code;
+            this.constants = constants;
+        }
+
+        private Token token(int at) {
+            int packed = code[at + 1];
+            return new Token(TOKEN_TYPES[packed & 0xff], (String) constants.get(code[at]), null, packed >>> 8);
+        }
+
+        private boolean first(int at) {
+            return (code[at] & FIRST) != 0;
+        }
+
+        private List<Stmt> stmts(int at) {
+            int count = code[at];
+            List<Stmt> stmts = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                stmts.add(stmt(code[at + i]));
+            }
+            return stmts;
+        }
+
+        private List<Expr> exprs(int at) {
+            int count = code[at];
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                exprs.add(expr(code[at + i]));
+            }
+            return exprs;
+        }
+
+        private List<Stmt.Function> functions(int at) {
+            int count = code[at];
+            List<Stmt.Function> functions = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                functions.add(function(code[at + i]));
+            }
+            return functions;
+        }
+
+        private Expr optionalExpr(int index) {
+            return index < 0 ? null : expr(index);
+        }
+
+        private Stmt optionalStmt(int index) {
+            return index < 0 ? null : stmt(index);
+        }
+
+        private Expr expr(int at) {
+            switch (code[at] & KIND) {
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(at + 1), expr(code[at + 3]));
+                    expr.depth = code[at + 4];
+                    expr.slot = code[at + 5];
+                    expr.upvalue = code[at + 6];
+                    expr.boxed = first(at);
+                    return expr;
+                }
+                case BINARY: {
+                    Expr.Binary expr = new Expr.Binary(expr(code[at + 1]), token(at + 2), expr(code[at + 4]));
+                    expr.numeric = first(at);
+                    return expr;
+                }
+                case CALL:
+                    return new Expr.Call(expr(code[at + 1]), token(at + 2), exprs(at + 4));
+                case GET:
+                    return new Expr.Get(expr(code[at + 1]), token(at + 2));
+                case SET:
+                    return new Expr.Set(expr(code[at + 1]), token(at + 2), expr(code[at + 4]));
+                case SUPER: {
+                    Expr.LoxSuper expr = new Expr.LoxSuper(token(at + 1), token(at + 3));
+                    expr.upvalue = code[at + 5];
+                    if (code[at + 6] >= 0) expr.receiver = (Expr.LoxThis) expr(code[at + 6]);
+                    return expr;
+                }
+                case THIS: {
+                    Expr.LoxThis expr = new Expr.LoxThis(token(at + 1));
+                    expr.depth = code[at + 3];
+                    expr.slot = code[at + 4];
+                    expr.upvalue = code[at + 5];
+                    expr.boxed = first(at);
+                    return expr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr(code[at + 1]));
+                case LITERAL:
+                    return new Expr.Literal(constants.get(code[at + 1]));
+                case LOGICAL:
+                    return new Expr.Logical(expr(code[at + 1]), token(at + 2), expr(code[at + 4]));
+                case UNARY:
+                    return new Expr.Unary(token(at + 1), expr(code[at + 3]));
+                case TERNARY:
+                    return new Expr.Ternary(expr(code[at + 1]), expr(code[at + 2]), expr(code[at + 3]));
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token(at + 1));
+                    expr.depth = code[at + 3];
+                    expr.slot = code[at + 4];
+                    expr.upvalue = code[at + 5];
+                    expr.boxed = first(at);
+                    return expr;
+                }
+                default:
+                    throw new IllegalStateException("Not an expression record: " + (code[at] & KIND));
+            }
+        }
+
+        private Stmt stmt(int at) {
+            switch (code[at] & KIND) {
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(stmts(at + 1));
+                    stmt.scoped = first(at);
+                    return stmt;
+                }
+                case CLASS:
+                    return classDef(at);
+                case EXPRESSION:
+                    return new Stmt.Expression(expr(code[at + 1]));
+                case FUNCTION:
+                    return function(at);
+                case IF:
+                    return new Stmt.IfCondition(expr(code[at + 1]), stmt(code[at + 2]), optionalStmt(code[at + 3]));
+                case PRINT:
+                    return new Stmt.Print(expr(code[at + 1]));
+                case RETURN: {
+                    Stmt.ReturnStmt stmt = new Stmt.ReturnStmt(token(at + 1), optionalExpr(code[at + 3]));
+                    stmt.tailCall = first(at);
+                    return stmt;
+                }
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(at + 1), optionalExpr(code[at + 3]));
+                    stmt.slot = code[at + 4];
+                    stmt.boxed = first(at);
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.WhileLoop(expr(code[at + 1]), stmt(code[at + 2]));
+                default:
+                    throw new IllegalStateException("Not a statement record: " + (code[at] & KIND));
+            }
+        }
+
+        private Stmt.ClassDef classDef(int at) {
+            int superclass = code[at + 3];
+            int methods = at + 5;
+            int staticMethods = methods + 1 + code[methods];
+            Stmt.ClassDef stmt = new Stmt.ClassDef(token(at + 1),
+                    superclass < 0 ? null : (Expr.Variable) expr(superclass),
+                    functions(methods), functions(staticMethods));
+            stmt.slot = code[at + 4];
+            stmt.boxed = first(at);
+            return stmt;
+        }
+
+        // name, slot, params, captures, boxed params, then the body's
+        // statements.
+        private Stmt.Function function(int at) {
+            int params = at + 4;
+            List<Token> parameters = new ArrayList<>(code[params]);
+            for (int i = 0; i < code[params]; i++) {
+                parameters.add(token(params + 1 + 2 * i));
+            }
+
+            int captures = params + 1 + 2 * code[params];
+            Capture[] captured = new Capture[code[captures]];
+            for (int i = 0; i < captured.length; i++) {
+                int capture = captures + 1 + 3 * i;
+                captured[i] = new Capture(code[capture] != 0, code[capture + 1], code[capture + 2]);
+            }
+
+            int boxed = captures + 1 + 3 * captured.length;
+            int body = boxed + 1 + code[boxed];
+
+            Stmt.Function stmt = new Stmt.Function(token(at + 1), parameters, stmts(body));
+            stmt.slot = code[at + 3];
+            stmt.boxed = first(at);
+            stmt.scoped = (code[at] & SECOND) != 0;
+            stmt.captures = captured;
+            stmt.boxedParams = Arrays.copyOfRange(code, boxed + 1, body);
+            return stmt;
+        }
+    }
+
+    // Writes the records; each visit returns the index of the record it wrote.
+    private static final class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private final Codec codec;
+        private int[] code = new int[64];
+        private int size = 0;
+
+        Encoder(Codec codec) {
+            this.codec = codec;
+        }
+
+        int[] finish() {
+            return Arrays.copyOf(code, size);
+        }
+
+        private int[] stmts(List<? extends Stmt> statements) {
+            int[] children = new int[statements.size()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = statements.get(i).accept(this);
+            }
+            return children;
+        }
+
+        private int encode(Expr expr) {
+            return expr == null ? -1 : expr.accept(this);
+        }
+
+        private int encode(Stmt stmt) {
+            return stmt == null ? -1 : stmt.accept(this);
+        }
+
+        private int begin() {
+            put(0); // The header, written by end().
+            return size - 1;
+        }
+
+        private int end(int at, int kind, int flags) {
+            code[at] = (size - at) << LENGTH_SHIFT | flags | kind;
+            return at;
+        }
+
+        private void put(int value) {
+            if (size == code.length) code = Arrays.copyOf(code, size * 2);
+            code[size++] = value;
+        }
+
+        private void list(int[] children) {
+            put(children.length);
+            for (int child : children) {
+                put(child);
+            }
+        }
+
+        private void token(Token token) {
+            put(constant(token.lexeme));
+            put(token.line << 8 | token.type.ordinal());
+        }
+
+        private int constant(Object value) {
+            return codec.constant(value);
+        }
+
+        private static int flag(boolean set) {
+            return set ? FIRST : 0;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            int value = encode(expr.value);
+            int at = begin();
+            token(expr.name);
+            put(value);
+            put(expr.depth);
+            put(expr.slot);
+            put(expr.upvalue);
+            return end(at, ASSIGN, flag(expr.boxed));
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int left = encode(expr.left);
+            int right = encode(expr.right);
+            int at = begin();
+            put(left);
+            token(expr.operator);
+            put(right);
+            return end(at, BINARY, flag(expr.numeric));
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int callee = encode(expr.callee);
+            int[] arguments = new int[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = encode(expr.arguments.get(i));
+            }
+            int at = begin();
+            put(callee);
+            token(expr.paren);
+            list(arguments);
+            return end(at, CALL, 0);
+        }
+
+        @Override
+        public Integer visitGetExpr(Expr.Get expr) {
+            int object = encode(expr.object);
+            int at = begin();
+            put(object);
+            token(expr.name);
+            return end(at, GET, 0);
+        }
+
+        @Override
+        public Integer visitSetExpr(Expr.Set expr) {
+            int object = encode(expr.object);
+            int value = encode(expr.value);
+            int at = begin();
+            put(object);
+            token(expr.name);
+            put(value);
+            return end(at, SET, 0);
+        }
+
+        @Override
+        public Integer visitLoxSuperExpr(Expr.LoxSuper expr) {
+            int receiver = encode(expr.receiver);
+            int at = begin();
+            token(expr.keyword);
+            token(expr.method);
+            put(expr.upvalue);
+            put(receiver);
+            return end(at, SUPER, 0);
+        }
+
+        @Override
+        public Integer visitLoxThisExpr(Expr.LoxThis expr) {
+            int at = begin();
+            token(expr.keyword);
+            put(expr.depth);
+            put(expr.slot);
+            put(expr.upvalue);
+            return end(at, THIS, flag(expr.boxed));
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            int expression = encode(expr.expression);
+            int at = begin();
+            put(expression);
+            return end(at, GROUPING, 0);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            int at = begin();
+            put(constant(expr.value));
+            return end(at, LITERAL, 0);
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            int left = encode(expr.left);
+            int right = encode(expr.right);
+            int at = begin();
+            put(left);
+            token(expr.operator);
+            put(right);
+            return end(at, LOGICAL, 0);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            int right = encode(expr.right);
+            int at = begin();
+            token(expr.operator);
+            put(right);
+            return end(at, UNARY, 0);
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            int condition = encode(expr.condition);
+            int trueCondition = encode(expr.trueCondition);
+            int falseCondition = encode(expr.falseCondition);
+            int at = begin();
+            put(condition);
+            put(trueCondition);
+            put(falseCondition);
+            return end(at, TERNARY, 0);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            int at = begin();
+            token(expr.name);
+            put(expr.depth);
+            put(expr.slot);
+            put(expr.upvalue);
+            return end(at, VARIABLE, flag(expr.boxed));
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            int[] statements = stmts(stmt.statements);
+            int at = begin();
+            list(statements);
+            return end(at, BLOCK, flag(stmt.scoped));
+        }
+
+        @Override
+        public Integer visitClassDefStmt(Stmt.ClassDef stmt) {
+            int superclass = encode(stmt.superclass);
+            int[] methods = stmts(stmt.methods);
+            int[] staticMethods = stmts(stmt.staticMethods);
+            int at = begin();
+            token(stmt.name);
+            put(superclass);
+            put(stmt.slot);
+            list(methods);
+            list(staticMethods);
+            return end(at, CLASS, flag(stmt.boxed));
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            int expression = encode(stmt.expression);
+            int at = begin();
+            put(expression);
+            return end(at, EXPRESSION, 0);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            int[] body = stmts(stmt.body);
+            int at = begin();
+            token(stmt.name);
+            put(stmt.slot);
+            put(stmt.params.size());
+            for (Token param : stmt.params) {
+                token(param);
+            }
+            put(stmt.captures.length);
+            for (Capture capture : stmt.captures) {
+                put(capture.local ? 1 : 0);
+                put(capture.depth);
+                put(capture.index);
+            }
+            put(stmt.boxedParams.length);
+            for (int slot : stmt.boxedParams) {
+                put(slot);
+            }
+            list(body);
+            return end(at, FUNCTION, flag(stmt.boxed) | (stmt.scoped ? SECOND : 0));
+        }
+
+        @Override
+        public Integer visitIfConditionStmt(Stmt.IfCondition stmt) {
+            int condition = encode(stmt.condition);
+            int thenBranch = encode(stmt.thenBranch);
+            int elseBranch = encode(stmt.elseBranch);
+            int at = begin();
+            put(condition);
+            put(thenBranch);
+            put(elseBranch);
+            return end(at, IF, 0);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            int expression = encode(stmt.expression);
+            int at = begin();
+            put(expression);
+            return end(at, PRINT, 0);
+        }
+
+        @Override
+        public Integer visitReturnStmtStmt(Stmt.ReturnStmt stmt) {
+            int value = encode(stmt.value);
+            int at = begin();
+            token(stmt.keyword);
+            put(value);
+            return end(at, RETURN, flag(stmt.tailCall));
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int initializer = encode(stmt.initializer);
+            int at = begin();
+            token(stmt.name);
+            put(initializer);
+            put(stmt.slot);
+            return end(at, VAR, flag(stmt.boxed));
+        }
+
+        @Override
+        public Integer visitWhileLoopStmt(Stmt.WhileLoop stmt) {
+            int condition = encode(stmt.condition);
+            int body = encode(stmt.body);
+            int at = begin();
+            put(condition);
+            put(body);
+            return end(at, WHILE, 0);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package lox.cache;
+
+import lox.ast.Stmt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// The front end's output for a script, resolved and optimized, kept so a
+// later run of the same source skips scanning, parsing, resolving and
+// optimizing. Entries live in a .loxcache directory beside the script and
+// are named by the script's file name and the hash of the source they were
+// made from, so an edited script simply misses. Writing a script's entry
+// deletes the ones made from its earlier versions.
+//
+// An entry holds each top-level statement in Codec's encoding, with the
+// constants each one adds to the shared pool written before it. Ints are
+// written in a variable-length form, as most are small. Like the profile,
+// the cache is only a shortcut: an entry that can't be read or written is
+// ignored and the script is compiled from source.
+public final class ScriptCache {
+    private static final String DIRECTORY = ".loxcache";
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int VERSION = 2;
+
+    private static final int CONSTANT = 1;
+    private static final int STATEMENT = 2;
+    private static final int END = 3;
+
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    private static final String SUFFIX = ".loxc";
+
+    private final Path directory;
+    private final String prefix; // The script's file name and a dot.
+    private final Path file;
+    private final String hash;
+
+    // The hash is the script's ContentHash.
+    public ScriptCache(Path script, String hash) {
+        this.directory = script.resolveSibling(DIRECTORY);
+        this.prefix = script.getFileName() + ".";
+        this.file = directory.resolve(prefix + hash + SUFFIX);
+        this.hash = hash;
+    }
+
+    // The cached program, or null if there is no usable entry.
+    public List<Stmt> load() {
+        try (Input in = new Input(Files.newInputStream(file), Files.size(file))) {
+            if (in.varint() != MAGIC || in.varint() != VERSION || !hash.equals(in.string())) return null;
+
+            List<Object> constants = new ArrayList<>();
+            List<Stmt> statements = new ArrayList<>();
+            while (true) {
+                switch (in.varint()) {
+                    case CONSTANT:
+                        constants.add(in.constant());
+                        break;
+                    case STATEMENT:
+                        int[] code = new int[in.length()];
+                        for (int i = 0; i < code.length; i++) {
+                            code[i] = in.varint();
+                        }
+                        statements.add(Codec.decode(code, constants));
+                        break;
+                    case END:
+                        return statements;
+                    default:
+                        return null;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return null; // Damaged or cut short: compile the script instead.
+        }
+    }
+
+    // Starts a new entry, written to a temporary file and only put in place
+    // once the whole program has been added.
+    public Writer writer() {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, hash, ".tmp");
+            return new Writer(temporary, new Output(Files.newOutputStream(temporary)));
+        } catch (IOException e) {
+            return new Writer(null, null); // Read-only directory and the like.
+        }
+    }
+
+    public final class Writer {
+        private final Path temporary;
+        private Output out;
+        private final Codec codec = new Codec();
+        private int constants = 0; // How many of the codec's constants are written.
+
+        private Writer(Path temporary, Output out) {
+            this.temporary = temporary;
+            this.out = out;
+            if (out != null) {
+                write(() -> {
+                    out.varint(MAGIC);
+                    out.varint(VERSION);
+                    out.string(hash);
+                });
+            }
+        }
+
+        public void add(Stmt statement) {
+            if (out == null) return;
+
+            int[] code = codec.encode(statement);
+            List<Object> pool = codec.constants();
+            write(() -> {
+                for (; constants < pool.size(); constants++) {
+                    out.varint(CONSTANT);
+                    out.constant(pool.get(constants));
+                }
+                out.varint(STATEMENT);
+                out.varint(code.length);
+                for (int value : code) {
+                    out.varint(value);
+                }
+            });
+        }
+
+        // Puts the entry in place if the program compiled, else drops it.
+        // Scanned is the ContentHash of the bytes it was compiled from; if the
+        // script changed after it was hashed for the key, they are not the
+        // ones the entry is named for, and it is dropped too.
+        public void finish(boolean compiled, String scanned) {
+            if (out == null) return;
+            if (!compiled || !hash.equals(scanned)) {
+                abandon();
+                return;
+            }
+
+            write(() -> {
+                out.varint(END);
+                out.close();
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            });
+            if (out != null) prune();
+            out = null;
+        }
+
+        // Deletes the script's other entries, which no run will read again
+        // unless it goes back to an older version. A script whose name starts
+        // with this one's has entries with more between the prefix and the
+        // hash, so only a name of exactly the prefix, a hash and the suffix is
+        // taken for one of this script's.
+        private void prune() {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) continue;
+
+                    String other = name.substring(prefix.length(), name.length() - SUFFIX.length());
+                    if (!other.equals(hash) && other.matches("[0-9a-f]{64}")) {
+                        Files.deleteIfExists(entry);
+                    }
+                }
+            } catch (IOException e) {
+                // A stale entry only takes up space.
+            }
+        }
+
+        // A failed write abandons the entry; the next run tries again.
+        private void write(Action action) {
+            try {
+                action.run();
+            } catch (IOException e) {
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Being deleted anyway.
+            }
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                // A stray temporary file does no harm.
+            }
+            out = null;
+        }
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    // Ints are zigzag-encoded so -1, the usual "none", takes one byte too.
+    private static final class Output implements Closeable {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int size = 0;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        void varint(int value) throws IOException {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                write((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            write(bits);
+        }
+
+        void string(String value) throws IOException {
+            varint(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                varint(value.charAt(i));
+            }
+        }
+
+        // Lexemes and literal values: nil, booleans, numbers and strings. A
+        // string folded into a rope is written as its text.
+        void constant(Object value) throws IOException {
+            if (value == null) {
+                varint(NIL);
+            } else if (value instanceof Boolean) {
+                varint((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                varint(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                varint((int) (bits >>> 32));
+                varint((int) bits);
+            } else {
+                varint(STRING);
+                string(value.toString());
+            }
+        }
+
+        private void write(int b) throws IOException {
+            if (size == buffer.length) flush();
+            buffer[size++] = (byte) b;
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, size);
+            size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static final class Input implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int position = 0;
+        private int limit = 0;
+        private long left; // Bytes of the entry not yet read.
+
+        Input(InputStream in, long size) {
+            this.in = in;
+            this.left = size;
+        }
+
+        // The length of an array that follows. Each element takes at least a
+        // byte, so a damaged length is caught here instead of allocating an
+        // array it could never fill, which could exhaust the heap.
+        int length() throws IOException {
+            int length = varint();
+            if (length < 0 || length > left) throw new IOException("Length past the end of the entry.");
+            return length;
+        }
+
+        int varint() throws IOException {
+            int bits = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+                bits |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        String string() throws IOException {
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) varint();
+            }
+            return new String(chars); // Each distinct string is in the pool once.
+        }
+
+        Object constant() throws IOException {
+            switch (varint()) {
+                case NIL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case NUMBER:
+                    long high = varint() & 0xffffffffL;
+                    long low = varint() & 0xffffffffL;
+                    return Double.longBitsToDouble(high << 32 | low);
+                case STRING:
+                    return string();
+                default:
+                    throw new IOException("Not a constant.");
+            }
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) throw new IOException("Entry cut short.");
+            }
+            left--;
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
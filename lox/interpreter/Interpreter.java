@@ -5,11 +5,17 @@ import lox.util.RuntimeError;
 import lox.scanner.Token;
 import lox.ast.Expr;
 import lox.ast.Stmt;
+import lox.ast.Capture;
+import lox.runtime.BoundMethod;
 import lox.runtime.Environment;
 import lox.runtime.LoxClass;
 import lox.runtime.LoxFunction;
 import lox.runtime.LoxInstance;
+import lox.runtime.PropertyCache;
+import lox.runtime.TailCall;
+import lox.runtime.Upvalue;
 import lox.util.LoxCallable;
+import lox.util.Rope;
 import lox.util.TokenType;
 
 import java.util.ArrayList;
@@ -21,7 +27,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     public final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+
+    // A return statement records its value here instead of throwing. Blocks
+    // and loops stop as soon as it is set, and the call it belongs to takes
+    // the value and clears it again.
+    private boolean returning = false;
+    private Object returnValue = null;
+
+    // Set alongside returning when the return was a tail call the caller's
+    // LoxFunction still has to make.
+    private TailCall tailCall = null;
+
+    // The function whose body is being tree-walked, for back-edge counting.
+    private LoxFunction running = null;
 
     public Interpreter() {
         globals.define("clock", new LoxCallable() {
@@ -48,6 +66,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    // Evaluates an expression statement once and prints its value, unless
+    // that is nil.
+    public void echo(Stmt.Expression statement) {
+        try {
+            Object value = evaluate(statement.expression);
+            if (value != null) {
+                System.out.println(stringify(value));
+            }
+        } catch (RuntimeError e) {
+            Lox.runtimeError(e);
+        }
+    }
+
     public Object evaluate(Expr expr) {
         return expr.accept(this);
     }
@@ -56,17 +87,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr,depth);
-    }
-
+    // Blocks that declare nothing, or whose locals live in the enclosing
+    // environment, run without one of their own.
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        executeBlock(stmt.statements, stmt.scoped ? new Environment(environment) : environment);
         return null;
     }
 
     public Void visitClassDefStmt(Stmt.ClassDef stmt) {
-        environment.define(stmt.name.lexeme, null);
+        // Methods that name the class capture its box before the class exists.
+        Upvalue box = stmt.boxed ? declareBox(stmt.slot) : null;
         Object superclass = null;
         Map<String, LoxFunction> methods = new HashMap<>();
         Map<String, LoxFunction> staticMethods = new HashMap<>();
@@ -76,18 +106,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             if (!(superclass instanceof LoxClass)) {
                 throw new RuntimeError(stmt.superclass.name, "Superclass must be a lox Class.");
             }
+            // Only methods read "super", always through an upvalue.
             environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment.define("super", new Upvalue(superclass));
         }
 
         for(Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, capture(method), method.name.lexeme.equals("init"));
 
             methods.put(method.name.lexeme, function);
         }
 
         for(Stmt.Function method : stmt.staticMethods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, capture(method), method.name.lexeme.equals("init"));
 
             staticMethods.put(method.name.lexeme, function);
         }
@@ -98,7 +129,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         LoxClass loxClass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods, staticMethods);
 
-        environment.assign(stmt.name, loxClass);
+        // Defined only once the class exists: methods read the name through
+        // their upvalue at call time, so they still see the finished class.
+        if (box != null) {
+            box.value = loxClass;
+        } else {
+            declare(stmt.name, stmt.slot, false, loxClass);
+        }
         return null;
     }
 
@@ -120,7 +157,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        declare(stmt.name, stmt.slot, stmt.boxed, value);
 
         return null;
     }
@@ -138,6 +175,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Void visitWhileLoopStmt(Stmt.WhileLoop whileloop) {
         while(isTruthy(evaluate(whileloop.condition))) {
             execute(whileloop.body);
+            if (returning) break;
+            if (running != null) running.countBackEdge();
         }
         return null;
     }
@@ -156,12 +195,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
 
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth >= 0) {
+            if (expr.boxed) {
+                ((Upvalue) environment.getAt(expr.depth, expr.slot)).value = value;
+            } else {
+                environment.assignAt(expr.depth, expr.slot, value);
+            }
+        } else if (expr.upvalue >= 0) {
+            running.upvalues[expr.upvalue].value = value;
         } else {
-            globals.assign(expr.name, value);
+            globals.cell(expr).assign(expr.name, value);
         }
 
         return value;
@@ -169,7 +213,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.depth >= 0) {
+            Object value = environment.getAt(expr.depth, expr.slot);
+            return expr.boxed ? ((Upvalue) value).value : value;
+        }
+        if (expr.upvalue >= 0) {
+            return running.upvalues[expr.upvalue].value;
+        }
+
+        // A depth of -1 is the resolver's mark for a global; the site keeps
+        // the global's cell after the first lookup.
+        return globals.cell(expr).get(expr.name);
     }
 
     @Override
@@ -180,7 +234,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr);
+        return evaluate(expr.expression);
     }
 
     @Override
@@ -200,6 +254,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        // Only the result of a whole arithmetic subtree gets boxed.
+        if (expr.numeric) return evaluateDouble(expr);
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
@@ -211,10 +268,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left + (double) right;
                 }
-                if (left instanceof String ) {
-                    return left + right.toString();
-                } else if (right instanceof String ) {
-                    return right + left.toString();
+                if (Rope.isString(left)) {
+                    return Rope.concat(left, right);
+                } else if (Rope.isString(right)) {
+                    return Rope.concat(right, left);
                 }
 
                 throw new RuntimeError(expr.operator, "Operands don't match. Left: " + left + ", Right: " + right + ", Types: " + (left == null ? "null" : left.getClass().getSimpleName()) + ", " + (right == null ? "null" : right.getClass().getSimpleName()));
@@ -247,35 +304,138 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Arithmetic the optimizer marked numeric, computed as a primitive.
+    // Numeric operands are computed the same way, so a whole arithmetic
+    // subtree boxes only its final result. Operands are still evaluated
+    // left to right, and both before a wrong type is reported.
+    private double evaluateDouble(Expr.Binary expr) {
+        double left;
+        if (expr.left instanceof Expr.Binary && ((Expr.Binary) expr.left).numeric) {
+            left = evaluateDouble((Expr.Binary) expr.left);
+        } else {
+            Object value = evaluate(expr.left);
+            if (!(value instanceof Double)) {
+                evaluate(expr.right);
+                throw new RuntimeError(expr.operator, "Operands must be a numbers.");
+            }
+            left = (double) value;
+        }
+
+        double right;
+        if (expr.right instanceof Expr.Binary && ((Expr.Binary) expr.right).numeric) {
+            right = evaluateDouble((Expr.Binary) expr.right);
+        } else {
+            Object value = evaluate(expr.right);
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(expr.operator, "Operands must be a numbers.");
+            }
+            right = (double) value;
+        }
+
+        switch (expr.operator.type) {
+            case PLUS:
+                return left + right;
+            case MINUS:
+                return left - right;
+            case STAR:
+                return left * right;
+            case SLASH:
+                if (right == 0) {
+                    throw new RuntimeError(expr.operator, "Cannot divide by zero.");
+                }
+                return left / right;
+        }
+        throw new IllegalStateException("Not a numeric operator: " + expr.operator.lexeme);
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(expr, false);
+    }
+
+    // obj.method(...) and super.method(...) run the method with its receiver
+    // directly instead of materializing a bound method first. In tail
+    // position a call to a Lox function is not made here at all; it is left
+    // for the enclosing LoxFunction to run in place of its own body.
+    private Object call(Expr.Call expr, boolean tail) {
+        LoxCallable function;
+        Object receiver = null;
 
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+
+            LoxFunction method = null;
+            if (object instanceof LoxInstance) {
+                method = ((LoxInstance) object).findMethod(get.name, PropertyCache.of(get));
+            }
+            if (method != null) {
+                function = method;
+                receiver = object;
+            } else {
+                function = callable(expr, getProperty(object, get));
+            }
+        } else if (expr.callee instanceof Expr.LoxSuper) {
+            Expr.LoxSuper loxSuper = (Expr.LoxSuper) expr.callee;
+            function = superMethod(loxSuper);
+            receiver = superReceiver(loxSuper);
+        } else {
+            function = callable(expr, evaluate(expr.callee));
+        }
+
+        List<Object> arguments = evaluateArguments(expr, function);
+
+        if (tail) {
+            if (function instanceof BoundMethod) {
+                receiver = ((BoundMethod) function).receiver;
+                function = ((BoundMethod) function).method;
+            }
+            if (function instanceof LoxFunction) {
+                scheduleTailCall(new TailCall((LoxFunction) function, receiver, arguments));
+                return null;
+            }
+        }
+
+        // Only the innermost call catches the overflow; the callers further
+        // out see the RuntimeError it becomes.
+        try {
+            if (receiver != null) {
+                return ((LoxFunction) function).callWithReceiver(this, receiver, arguments);
+            }
+            return function.call(this, arguments);
+        } catch (StackOverflowError e) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    private LoxCallable callable(Expr.Call expr, Object callee) {
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
+        return (LoxCallable) callee;
+    }
 
+    private List<Object> evaluateArguments(Expr.Call expr, LoxCallable function) {
         List<Object> arguments = new ArrayList<>();
 
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
 
-        LoxCallable function = (LoxCallable)callee;
-
         if (arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " + function.arity() + " but got " + arguments.size() + " arguments.");
         }
-
-        return function.call(this, arguments);
+        return arguments;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr);
+    }
 
+    private Object getProperty(Object object, Expr.Get expr) {
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return ((LoxInstance) object).get(expr.name, PropertyCache.of(expr));
         }
 
         if (object instanceof LoxClass) {
@@ -297,61 +457,103 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         Object value = evaluate(expr.value);
 
-        ((LoxInstance)object).set(expr.name, value);
+        ((LoxInstance)object).set(expr.name, value, PropertyCache.of(expr));
         return value;
     }
 
     @Override
     public Object visitLoxSuperExpr(Expr.LoxSuper expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+        return superMethod(expr).bind(superReceiver(expr));
+    }
+
+    private LoxFunction superMethod(Expr.LoxSuper expr) {
+        LoxClass superclass = (LoxClass) running.upvalues[expr.upvalue].value;
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined property " + expr.method.lexeme);
         }
-        return method.bind(object);
+        return method;
+    }
+
+    private Object superReceiver(Expr.LoxSuper expr) {
+        return evaluate(expr.receiver);
     }
 
     @Override
     public Object visitLoxThisExpr(Expr.LoxThis expr) {
-        return lookUpVariable(expr.keyword, expr);
+        if (expr.upvalue >= 0) {
+            return running.upvalues[expr.upvalue].value;
+        }
+        Object value = environment.getAt(expr.depth, expr.slot);
+        return expr.boxed ? ((Upvalue) value).value : value;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-         LoxFunction function = new LoxFunction(stmt, environment, false);
+         // A function that calls itself captures its own box.
+         if (stmt.boxed) {
+             Upvalue box = declareBox(stmt.slot);
+             box.value = new LoxFunction(stmt, capture(stmt), false);
+             return null;
+         }
+
+         declare(stmt.name, stmt.slot, false, new LoxFunction(stmt, capture(stmt), false));
+         return null;
+    }
 
-         environment.define(stmt.name.lexeme, function);
+    // Globals are defined by name, locals at the slot the resolver gave them.
+    // A local some closure captures is kept in a box the closure shares.
+    private void declare(Token name, int slot, boolean boxed, Object value) {
+        if (slot < 0) {
+            environment.define(name.lexeme, value);
+        } else {
+            environment.defineAt(slot, boxed ? new Upvalue(value) : value);
+        }
+    }
 
-         return null;
+    private Upvalue declareBox(int slot) {
+        Upvalue box = new Upvalue(null);
+        environment.defineAt(slot, box);
+        return box;
+    }
+
+    // The upvalues of a new closure of this declaration, taken from the
+    // current environment and the function running here.
+    private Upvalue[] capture(Stmt.Function declaration) {
+        Upvalue[] upvalues = new Upvalue[declaration.captures.length];
+        for (int i = 0; i < upvalues.length; i++) {
+            Capture capture = declaration.captures[i];
+            if (capture.local) {
+                upvalues[i] = (Upvalue) environment.getAt(capture.depth, capture.index);
+            } else {
+                upvalues[i] = running.upvalues[capture.index];
+            }
+        }
+        return upvalues;
     }
 
     @Override
     public Void visitReturnStmtStmt(Stmt.ReturnStmt stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.tailCall) {
+            value = call((Expr.Call) stmt.value, true);
+        } else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
 
-        throw new Return(value);
+        returnValue = value;
+        returning = true;
+        return null;
     }
 
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
         Object condition = evaluate(expr.condition);
         if (isTruthy(condition)) {
-            return expr.trueCondition;
-        }
-        return expr.falseCondition;
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+            return evaluate(expr.trueCondition);
         }
+        return evaluate(expr.falseCondition);
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
@@ -367,6 +569,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     private boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         if (left == null) return false;
+        if (right instanceof Rope) return right.equals(left);
         return left.equals(right);
     }
 
@@ -397,10 +600,38 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             this.environment = environment;
             for (Stmt statement : statements) {
                 execute(statement);
+                if (returning) break;
             }
         } finally {
             this.environment = previous;
         }
     }
 
+    // Runs a function body and yields the value it returned, nil if none.
+    public Object executeBody(LoxFunction function, List<Stmt> body, Environment environment) {
+        LoxFunction caller = running;
+        running = function;
+        try {
+            executeBlock(body, environment);
+        } finally {
+            running = caller;
+        }
+        if (!returning) return null;
+
+        Object value = returnValue;
+        returning = false;
+        returnValue = null;
+        return value;
+    }
+
+    public void scheduleTailCall(TailCall call) {
+        tailCall = call;
+    }
+
+    public TailCall takeTailCall() {
+        TailCall pending = tailCall;
+        tailCall = null;
+        return pending;
+    }
+
 }
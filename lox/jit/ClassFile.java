@@ -0,0 +1,278 @@
+package lox.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a class file writer for the JIT: one class, its constant
+// pool, fields and methods with a Code attribute. Classes are written as
+// version 49 so the verifier infers types itself and no stack map frames
+// have to be computed.
+final class ClassFile {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    void addInterface(String name) {
+        interfaces.add(classRef(name));
+    }
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            byte[] instructions = code.toByteArray();
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + instructions.length);
+            out.writeShort(code.maxStack());
+            out.writeShort(code.maxLocals());
+            out.writeInt(instructions.length);
+            out.write(instructions);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int index : interfaces) out.writeShort(index);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Constant pool
+
+    int utf8(String value) {
+        return constant("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, 7, out -> out.writeShort(name));
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return constant("S" + value, 8, out -> out.writeShort(utf8));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        });
+        return constant(tag + owner + "." + name + ":" + descriptor, tag, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, Entry entry) {
+        Integer existing = poolIndex.get(key);
+        if (existing != null) return existing;
+
+        try {
+            pool.writeByte(tag);
+            entry.write(pool);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    // A method body. Stack depth is tracked as instructions are emitted, which
+    // works because the compiler only ever joins paths with equal depths.
+    static final class Code {
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        Code(int parameterSlots) {
+            maxLocals = parameterSlots;
+        }
+
+        int newLocal() {
+            return maxLocals++;
+        }
+
+        int maxStack() {
+            return maxStack;
+        }
+
+        int maxLocals() {
+            return maxLocals;
+        }
+
+        int size() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(code, length);
+        }
+
+        // Emits an instruction and records how it changes the stack depth.
+        void op(int opcode, int stackEffect) {
+            write(opcode);
+            adjust(stackEffect);
+        }
+
+        void op(int opcode, int operand, int stackEffect) {
+            write(opcode);
+            write(operand);
+            adjust(stackEffect);
+        }
+
+        void opShort(int opcode, int operand, int stackEffect) {
+            write(opcode);
+            writeShort(operand);
+            adjust(stackEffect);
+        }
+
+        void invokeInterface(int methodRef, int argumentSlots, int stackEffect) {
+            write(Opcodes.INVOKEINTERFACE);
+            writeShort(methodRef);
+            write(argumentSlots + 1);
+            write(0);
+            adjust(stackEffect);
+        }
+
+        void jump(int opcode, Label target, int stackEffect) {
+            int at = length;
+            write(opcode);
+            if (target.position >= 0) {
+                writeShort(target.position - at);
+            } else {
+                target.uses.add(at);
+                writeShort(0);
+            }
+            adjust(stackEffect);
+        }
+
+        void mark(Label label) {
+            label.position = length;
+            for (int at : label.uses) {
+                int offset = label.position - at;
+                code[at + 1] = (byte) (offset >> 8);
+                code[at + 2] = (byte) offset;
+            }
+        }
+
+        // Control leaves the current path (return, goto); the next
+        // instruction is reached only through a label at this depth.
+        void setStack(int depth) {
+            stack = depth;
+        }
+
+        int stack() {
+            return stack;
+        }
+
+        private void write(int value) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) value;
+        }
+
+        private void writeShort(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+        }
+    }
+
+    static final class Label {
+        private int position = -1;
+        private final List<Integer> uses = new ArrayList<>();
+    }
+}
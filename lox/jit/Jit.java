@@ -0,0 +1,60 @@
+package lox.jit;
+
+import lox.ast.Stmt;
+import lox.profile.Profile;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+// The hot tier. Functions start out tree-walked; once their calls plus loop
+// iterations reach THRESHOLD, LoxFunction asks for their body here and runs
+// the compiled code from then on. Bodies the compiler can't handle stay on
+// the interpreter.
+public final class Jit {
+
+    public static final int THRESHOLD = 1000;
+
+    // Compiled code per declaration, shared by every closure made from it.
+    // A null value records a body that could not be compiled.
+    private static final Map<Stmt.Function, JitCode> compiled = new HashMap<>();
+
+    // Functions an earlier run compiled are marked "hot" here and compiled
+    // on their first call.
+    private static final String HOT = "hot";
+    private static Profile profile = null;
+
+    private Jit() {}
+
+    public static void useProfile(Profile profile) {
+        Jit.profile = profile;
+    }
+
+    // Calls plus loop iterations before a new function of this declaration
+    // is compiled.
+    public static int threshold(Stmt.Function declaration) {
+        if (profile != null && HOT.equals(profile.get(declaration))) return 1;
+        return THRESHOLD;
+    }
+
+    public static JitCode compile(Stmt.Function declaration, boolean hasReceiver) {
+        if (compiled.containsKey(declaration)) return compiled.get(declaration);
+
+        JitCode code = null;
+        try {
+            JitCompiler compiler = new JitCompiler(hasReceiver);
+            byte[] bytes = compiler.compile(declaration);
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            code = (JitCode) lookup.lookupClass()
+                    .getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) compiler.constants());
+        } catch (JitCompiler.Unsupported | ReflectiveOperationException | LinkageError e) {
+            code = null;
+        }
+
+        compiled.put(declaration, code);
+        if (code != null && profile != null) profile.put(declaration, HOT);
+        return code;
+    }
+}
@@ -0,0 +1,12 @@
+package lox.jit;
+
+import lox.interpreter.Interpreter;
+import lox.runtime.Upvalue;
+
+import java.util.List;
+
+// A function body compiled to JVM bytecode. It runs with the same upvalues,
+// receiver and arguments LoxFunction would otherwise hand the interpreter.
+public interface JitCode {
+    Object run(Interpreter interpreter, Upvalue[] upvalues, Object receiver, List<Object> arguments);
+}
@@ -0,0 +1,564 @@
+package lox.jit;
+
+import lox.ast.Expr;
+import lox.ast.Stmt;
+import lox.util.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static lox.jit.Opcodes.*;
+
+// Compiles one function body into a class implementing JitCode. The function's
+// own locals live in JVM locals, which is safe because bodies that declare
+// functions or classes (the only way to capture a local) are not compiled.
+// Variables of enclosing code are read through the function's upvalues.
+//
+// Values stay boxed; every operator is a call into JitRuntime that HotSpot
+// inlines once the generated method gets hot.
+final class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // Thrown for anything the compiler doesn't handle; the function then
+    // stays on the interpreter.
+    static final class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final String CLASS = "lox/jit/CompiledFunction";
+    private static final String RUNTIME = "lox/jit/JitRuntime";
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "Llox/scanner/Token;";
+    private static final String INTERPRETER = "Llox/interpreter/Interpreter;";
+    private static final String UPVALUES = "[Llox/runtime/Upvalue;";
+    private static final String CALLABLE = "Llox/util/LoxCallable;";
+    private static final String FUNCTION = "Llox/runtime/LoxFunction;";
+    private static final String INSTANCE = "Llox/runtime/LoxInstance;";
+
+    // Locals of run(): this, interpreter, upvalues, receiver, arguments.
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int UPVALUES_LOCAL = 2;
+    private static final int RECEIVER_LOCAL = 3;
+    private static final int ARGUMENTS_LOCAL = 4;
+
+    private static final int MAX_CODE = 32767;
+    private static final int MAX_LOCALS = 256;
+
+    private final boolean hasReceiver;
+    private final ClassFile classFile = new ClassFile(CLASS, "java/lang/Object");
+    private final ClassFile.Code code = new ClassFile.Code(5);
+    private final List<Object> constants = new ArrayList<>();
+
+    // The JVM local of each slot, for each environment the interpreter would
+    // create inside the function.
+    private final Stack<Map<Integer, Integer>> scopes = new Stack<>();
+
+    JitCompiler(boolean hasReceiver) {
+        this.hasReceiver = hasReceiver;
+    }
+
+    byte[] compile(Stmt.Function function) {
+        classFile.addInterface("lox/jit/JitCode");
+        classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "constants", "[" + OBJECT);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([" + OBJECT + ")V", constructor());
+
+        Map<Integer, Integer> parameters = new HashMap<>();
+        if (hasReceiver) parameters.put(0, RECEIVER_LOCAL);
+        for (int i = 0; i < function.params.size(); i++) {
+            int local = code.newLocal();
+            code.op(ALOAD, ARGUMENTS_LOCAL, 1);
+            pushInt(i);
+            code.invokeInterface(classFile.interfaceMethodRef("java/util/List", "get", "(I)" + OBJECT), 1, -1);
+            code.op(ASTORE, local, -1);
+            parameters.put(parameters.size(), local);
+        }
+
+        if (function.scoped) scopes.push(parameters);
+        for (Stmt statement : function.body) {
+            compile(statement);
+        }
+        if (function.scoped) scopes.pop();
+
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+
+        if (code.size() > MAX_CODE || code.maxLocals() > MAX_LOCALS || constants.size() > Short.MAX_VALUE) {
+            throw new Unsupported();
+        }
+
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "run", "(" + INTERPRETER + UPVALUES + OBJECT + "Ljava/util/List;)" + OBJECT, code);
+        return classFile.toByteArray();
+    }
+
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    private ClassFile.Code constructor() {
+        ClassFile.Code init = new ClassFile.Code(2);
+        init.op(ALOAD, 0, 1);
+        init.opShort(INVOKESPECIAL, classFile.methodRef("java/lang/Object", "<init>", "()V"), -1);
+        init.op(ALOAD, 0, 1);
+        init.op(ALOAD, 1, 1);
+        init.opShort(PUTFIELD, classFile.fieldRef(CLASS, "constants", "[" + OBJECT), -2);
+        init.op(RETURN, 0);
+        return init;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.scoped) scopes.push(new HashMap<>());
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        if (stmt.scoped) scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitClassDefStmt(Stmt.ClassDef stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfConditionStmt(Stmt.IfCondition stmt) {
+        ClassFile.Label elseBranch = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+
+        condition(stmt.condition, elseBranch);
+        compile(stmt.thenBranch);
+        code.jump(GOTO, end, 0);
+        code.mark(elseBranch);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.op(ALOAD, INTERPRETER_LOCAL, 1);
+        compile(stmt.expression);
+        runtime("print", "(" + INTERPRETER + OBJECT + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmtStmt(Stmt.ReturnStmt stmt) {
+        if (stmt.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (stmt.tailCall) {
+            call((Expr.Call) stmt.value, true);
+        } else {
+            compile(stmt.value);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            code.op(ACONST_NULL, 1);
+        } else {
+            compile(stmt.initializer);
+        }
+
+        int local = code.newLocal();
+        code.op(ASTORE, local, -1);
+        scopes.peek().put(stmt.slot, local);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileLoopStmt(Stmt.WhileLoop stmt) {
+        ClassFile.Label start = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+
+        code.mark(start);
+        condition(stmt.condition, end);
+        compile(stmt.body);
+        code.jump(GOTO, start, 0);
+        code.mark(end);
+        return null;
+    }
+
+    // Jumps to ifFalse unless the condition holds. Comparisons branch on
+    // their primitive result instead of boxing it first.
+    private void condition(Expr condition, ClassFile.Label ifFalse) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            String comparison = comparison(binary.operator.type);
+
+            if (comparison != null) {
+                compile(binary.left);
+                compile(binary.right);
+                constant(binary.operator, TOKEN);
+                runtime(comparison, "(" + OBJECT + OBJECT + TOKEN + ")Z");
+                code.jump(IFEQ, ifFalse, -1);
+                return;
+            }
+
+            if (binary.operator.type == TokenType.EQUAL_EQUAL || binary.operator.type == TokenType.BANG_EQUAL) {
+                compile(binary.left);
+                compile(binary.right);
+                runtime("isEqual", "(" + OBJECT + OBJECT + ")Z");
+                code.jump(binary.operator.type == TokenType.EQUAL_EQUAL ? IFEQ : IFNE, ifFalse, -1);
+                return;
+            }
+        }
+
+        compile(condition);
+        runtime("isTruthy", "(" + OBJECT + ")Z");
+        code.jump(IFEQ, ifFalse, -1);
+    }
+
+    // Expressions
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        if (expr.depth >= 0) {
+            code.op(DUP, 1);
+            code.op(ASTORE, local(expr.depth, expr.slot, expr.boxed), -1);
+            return null;
+        }
+
+        if (expr.upvalue >= 0) {
+            code.op(ALOAD, UPVALUES_LOCAL, 1);
+            pushInt(expr.upvalue);
+            runtime("setUpvalue", "(" + OBJECT + UPVALUES + "I)" + OBJECT);
+            return null;
+        }
+
+        code.op(ALOAD, INTERPRETER_LOCAL, 1);
+        constant(expr, "Llox/ast/Expr$Assign;");
+        runtime("setGlobal", "(" + OBJECT + INTERPRETER + "Llox/ast/Expr$Assign;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        String comparison = comparison(expr.operator.type);
+        if (comparison != null || expr.operator.type == TokenType.EQUAL_EQUAL || expr.operator.type == TokenType.BANG_EQUAL) {
+            ClassFile.Label isFalse = new ClassFile.Label();
+            ClassFile.Label end = new ClassFile.Label();
+
+            condition(expr, isFalse);
+            pushBoolean(true);
+            code.jump(GOTO, end, 0);
+            code.setStack(code.stack() - 1);
+            code.mark(isFalse);
+            pushBoolean(false);
+            code.mark(end);
+            return null;
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        constant(expr.operator, TOKEN);
+
+        String descriptor = "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT;
+        switch (expr.operator.type) {
+            case PLUS: runtime("add", descriptor); break;
+            case MINUS: runtime("subtract", descriptor); break;
+            case STAR: runtime("multiply", descriptor); break;
+            case SLASH: runtime("divide", descriptor); break;
+            default: throw new Unsupported();
+        }
+        return null;
+    }
+
+    private String comparison(TokenType operator) {
+        switch (operator) {
+            case GREATER: return "greater";
+            case GREATER_EQUAL: return "greaterEqual";
+            case LESS: return "less";
+            case LESS_EQUAL: return "lessEqual";
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // Leaves the callee in one temporary and the receiver (null for plain
+    // calls) in another, then hands both to JitRuntime with the arguments.
+    private void call(Expr.Call expr, boolean tail) {
+        int function = code.newLocal();
+        int receiver = code.newLocal();
+
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            ClassFile.Label isMethod = new ClassFile.Label();
+
+            compile(get.object);
+            code.op(ASTORE, receiver, -1);
+            code.op(ALOAD, receiver, 1);
+            constant(get, "Llox/ast/Expr$Get;");
+            runtime("findMethod", "(" + OBJECT + "Llox/ast/Expr$Get;)" + FUNCTION);
+            code.op(ASTORE, function, -1);
+            code.op(ALOAD, function, 1);
+            code.jump(IFNONNULL, isMethod, -1);
+
+            code.op(ALOAD, receiver, 1);
+            constant(get, "Llox/ast/Expr$Get;");
+            runtime("getProperty", "(" + OBJECT + "Llox/ast/Expr$Get;)" + OBJECT);
+            callable(expr, function, receiver);
+            code.mark(isMethod);
+        } else if (expr.callee instanceof Expr.LoxSuper) {
+            Expr.LoxSuper loxSuper = (Expr.LoxSuper) expr.callee;
+
+            loadUpvalue(loxSuper.upvalue);
+            constant(loxSuper, "Llox/ast/Expr$LoxSuper;");
+            runtime("superMethod", "(" + OBJECT + "Llox/ast/Expr$LoxSuper;)" + FUNCTION);
+            code.op(ASTORE, function, -1);
+            compile(loxSuper.receiver);
+            code.op(ASTORE, receiver, -1);
+        } else {
+            compile(expr.callee);
+            callable(expr, function, receiver);
+        }
+
+        code.op(ALOAD, INTERPRETER_LOCAL, 1);
+        code.op(ALOAD, function, 1);
+        code.op(ALOAD, receiver, 1);
+
+        pushInt(expr.arguments.size());
+        code.opShort(ANEWARRAY, classFile.classRef("java/lang/Object"), 0);
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            code.op(DUP, 1);
+            pushInt(i);
+            compile(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+
+        constant(expr, "Llox/ast/Expr$Call;");
+        runtime(tail ? "tailCall" : "call", "(" + INTERPRETER + CALLABLE + OBJECT + "[" + OBJECT + "Llox/ast/Expr$Call;)" + OBJECT);
+    }
+
+    // Checks the value on the stack is callable and stores it with no receiver.
+    private void callable(Expr.Call expr, int function, int receiver) {
+        constant(expr, "Llox/ast/Expr$Call;");
+        runtime("callable", "(" + OBJECT + "Llox/ast/Expr$Call;)" + CALLABLE);
+        code.op(ASTORE, function, -1);
+        code.op(ACONST_NULL, 1);
+        code.op(ASTORE, receiver, -1);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        constant(expr, "Llox/ast/Expr$Get;");
+        runtime("getProperty", "(" + OBJECT + "Llox/ast/Expr$Get;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        constant(expr, "Llox/ast/Expr$Set;");
+        runtime("instanceForSet", "(" + OBJECT + "Llox/ast/Expr$Set;)" + INSTANCE);
+        compile(expr.value);
+        constant(expr, "Llox/ast/Expr$Set;");
+        runtime("setProperty", "(" + INSTANCE + OBJECT + "Llox/ast/Expr$Set;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitLoxSuperExpr(Expr.LoxSuper expr) {
+        loadUpvalue(expr.upvalue);
+        compile(expr.receiver);
+        constant(expr, "Llox/ast/Expr$LoxSuper;");
+        runtime("bindSuper", "(" + OBJECT + OBJECT + "Llox/ast/Expr$LoxSuper;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitLoxThisExpr(Expr.LoxThis expr) {
+        if (expr.upvalue >= 0) {
+            loadUpvalue(expr.upvalue);
+        } else {
+            code.op(ALOAD, local(expr.depth, expr.slot, expr.boxed), 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+
+        if (value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (value instanceof Boolean) {
+            pushBoolean((Boolean) value);
+        } else if (value instanceof String) {
+            code.opShort(LDC_W, classFile.string((String) value), 1);
+        } else {
+            constant(value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassFile.Label end = new ClassFile.Label();
+
+        compile(expr.left);
+        code.op(DUP, 1);
+        runtime("isTruthy", "(" + OBJECT + ")Z");
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end, -1);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG:
+                runtime("not", "(" + OBJECT + ")" + OBJECT);
+                break;
+            case MINUS:
+                constant(expr.operator, TOKEN);
+                runtime("negate", "(" + OBJECT + TOKEN + ")" + OBJECT);
+                break;
+            default:
+                throw new Unsupported();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        ClassFile.Label falseBranch = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+
+        condition(expr.condition, falseBranch);
+        compile(expr.trueCondition);
+        code.jump(GOTO, end, 0);
+        code.setStack(code.stack() - 1);
+        code.mark(falseBranch);
+        compile(expr.falseCondition);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth >= 0) {
+            code.op(ALOAD, local(expr.depth, expr.slot, expr.boxed), 1);
+        } else if (expr.upvalue >= 0) {
+            loadUpvalue(expr.upvalue);
+        } else {
+            code.op(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr, "Llox/ast/Expr$Variable;");
+            runtime("getGlobal", "(" + INTERPRETER + "Llox/ast/Expr$Variable;)" + OBJECT);
+        }
+        return null;
+    }
+
+    // Variables
+
+    // The JVM local holding a local of the function. Frames reach no further
+    // than the function itself, and only a closure can make a local boxed,
+    // which a compiled body never creates.
+    private int local(int depth, int slot, boolean boxed) {
+        Integer local = depth < scopes.size() ? scopes.get(scopes.size() - 1 - depth).get(slot) : null;
+        if (local == null || boxed) throw new Unsupported();
+        return local;
+    }
+
+    private void loadUpvalue(int index) {
+        code.op(ALOAD, UPVALUES_LOCAL, 1);
+        pushInt(index);
+        runtime("getUpvalue", "(" + UPVALUES + "I)" + OBJECT);
+    }
+
+    // Emitting
+
+    // Pushes constants[index], cast to type unless type is null.
+    private void constant(Object value, String type) {
+        int index = constants.size();
+        constants.add(value);
+
+        code.op(ALOAD, 0, 1);
+        code.opShort(GETFIELD, classFile.fieldRef(CLASS, "constants", "[" + OBJECT), 0);
+        pushInt(index);
+        code.op(AALOAD, -1);
+        if (type != null) {
+            code.opShort(CHECKCAST, classFile.classRef(type.substring(1, type.length() - 1)), 0);
+        }
+    }
+
+    private void pushBoolean(boolean value) {
+        code.opShort(GETSTATIC, classFile.fieldRef("java/lang/Boolean", value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"), 1);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op(BIPUSH, value, 1);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.opShort(SIPUSH, value, 1);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void runtime(String name, String descriptor) {
+        int result = descriptor.endsWith(")V") ? 0 : 1;
+        code.opShort(INVOKESTATIC, classFile.methodRef(RUNTIME, name, descriptor), result - argumentCount(descriptor));
+    }
+
+    // Every argument JitRuntime takes fits in one stack slot.
+    private static int argumentCount(String descriptor) {
+        int count = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            count++;
+        }
+        return count;
+    }
+}
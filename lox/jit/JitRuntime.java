@@ -0,0 +1,231 @@
+package lox.jit;
+
+import lox.ast.Expr;
+import lox.interpreter.Interpreter;
+import lox.runtime.BoundMethod;
+import lox.runtime.LoxClass;
+import lox.runtime.LoxFunction;
+import lox.runtime.LoxInstance;
+import lox.runtime.PropertyCache;
+import lox.runtime.TailCall;
+import lox.runtime.Upvalue;
+import lox.scanner.Token;
+import lox.util.LoxCallable;
+import lox.util.Rope;
+import lox.util.RuntimeError;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Operations compiled code calls into. Each one does what the matching
+// Interpreter visit method does, with the same errors, so a function behaves
+// the same whichever tier runs it. They are small enough for HotSpot to
+// inline into the generated method.
+final class JitRuntime {
+
+    private JitRuntime() {}
+
+    // Arithmetic and comparison
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (Rope.isString(left)) {
+            return Rope.concat(left, right);
+        } else if (Rope.isString(right)) {
+            return Rope.concat(right, left);
+        }
+
+        throw new RuntimeError(operator, "Operands don't match. Left: " + left + ", Right: " + right + ", Types: " + (left == null ? "null" : left.getClass().getSimpleName()) + ", " + (right == null ? "null" : right.getClass().getSimpleName()));
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        if ((Double) right == 0) {
+            throw new RuntimeError(operator, "Cannot divide by zero.");
+        }
+        return (double) left / (double) right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    static boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        if (right instanceof Rope) return right.equals(left);
+        return left.equals(right);
+    }
+
+    static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) {
+            return (boolean)object;
+        }
+        return true;
+    }
+
+    static Object not(Object right) {
+        return !isTruthy(right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double) right;
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be a numbers.");
+    }
+
+    // Variables
+
+    // Globals go through the same per-site cells the interpreter fills in.
+    static Object getGlobal(Interpreter interpreter, Expr.Variable expr) {
+        return interpreter.globals.cell(expr).get(expr.name);
+    }
+
+    static Object setGlobal(Object value, Interpreter interpreter, Expr.Assign expr) {
+        interpreter.globals.cell(expr).assign(expr.name, value);
+        return value;
+    }
+
+    static Object getUpvalue(Upvalue[] upvalues, int index) {
+        return upvalues[index].value;
+    }
+
+    static Object setUpvalue(Object value, Upvalue[] upvalues, int index) {
+        upvalues[index].value = value;
+        return value;
+    }
+
+    static void print(Interpreter interpreter, Object value) {
+        System.out.println(interpreter.stringify(value));
+    }
+
+    // Properties
+
+    static Object getProperty(Object object, Expr.Get expr) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).get(expr.name, PropertyCache.of(expr));
+        }
+
+        if (object instanceof LoxClass) {
+            LoxFunction staticMethod = ((LoxClass) object).findStaticMethod(expr.name.lexeme);
+            if (staticMethod != null) {
+                return staticMethod;
+            }
+        }
+
+        throw new RuntimeError(expr.name, "Can only get functions and classes.");
+    }
+
+    static LoxInstance instanceForSet(Object object, Expr.Set expr) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have fields.");
+        }
+        return (LoxInstance) object;
+    }
+
+    static Object setProperty(LoxInstance object, Object value, Expr.Set expr) {
+        object.set(expr.name, value, PropertyCache.of(expr));
+        return value;
+    }
+
+    static LoxFunction superMethod(Object superclass, Expr.LoxSuper expr) {
+        LoxFunction method = ((LoxClass) superclass).findMethod(expr.method.lexeme);
+
+        if (method == null) {
+            throw new RuntimeError(expr.method, "Undefined property " + expr.method.lexeme);
+        }
+        return method;
+    }
+
+    static Object bindSuper(Object superclass, Object receiver, Expr.LoxSuper expr) {
+        return superMethod(superclass, expr).bind(receiver);
+    }
+
+    // Calls
+
+    // The method obj.name(...) runs directly with obj as receiver, or null
+    // when the name is not a method of an instance.
+    static LoxFunction findMethod(Object object, Expr.Get expr) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).findMethod(expr.name, PropertyCache.of(expr));
+        }
+        return null;
+    }
+
+    static LoxCallable callable(Object callee, Expr.Call expr) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+        }
+        return (LoxCallable) callee;
+    }
+
+    static Object call(Interpreter interpreter, LoxCallable function, Object receiver, Object[] arguments, Expr.Call expr) {
+        List<Object> list = arguments(function, arguments, expr);
+        try {
+            if (receiver != null) {
+                return ((LoxFunction) function).callWithReceiver(interpreter, receiver, list);
+            }
+            return function.call(interpreter, list);
+        } catch (StackOverflowError e) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    // A call in tail position: Lox functions are left for the caller's
+    // trampoline, exactly as the interpreter does it.
+    static Object tailCall(Interpreter interpreter, LoxCallable function, Object receiver, Object[] arguments, Expr.Call expr) {
+        List<Object> list = arguments(function, arguments, expr);
+
+        if (function instanceof BoundMethod) {
+            receiver = ((BoundMethod) function).receiver;
+            function = ((BoundMethod) function).method;
+        }
+        if (function instanceof LoxFunction) {
+            interpreter.scheduleTailCall(new TailCall((LoxFunction) function, receiver, list));
+            return null;
+        }
+        return function.call(interpreter, list);
+    }
+
+    private static List<Object> arguments(LoxCallable function, Object[] arguments, Expr.Call expr) {
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " but got " + arguments.length + " arguments.");
+        }
+        return Arrays.asList(arguments);
+    }
+}
@@ -0,0 +1,32 @@
+package lox.jit;
+
+// The JVM instructions the JIT emits.
+final class Opcodes {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFNONNULL = 0xc7;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    private Opcodes() {}
+}
@@ -0,0 +1,983 @@
+package lox.nodes;
+
+import lox.ast.Expr;
+import lox.profile.Profile;
+import lox.runtime.Environment;
+import lox.runtime.GlobalCell;
+import lox.runtime.Upvalue;
+import lox.scanner.Token;
+import lox.util.Rope;
+import lox.util.RuntimeError;
+
+// Executable expression tree produced by NodeCompiler. Each node has its
+// operator and variable location fixed at compile time, so evaluating it is
+// a single virtual call with no visitor dispatch or operator switch.
+abstract class ExprNode extends Node {
+
+    abstract Object evaluate(Environment environment);
+
+    // Evaluates to an unboxed number. Nodes specialized for numbers override
+    // this to skip boxing; anything else reports its actual value instead.
+    double executeDouble(Environment environment) {
+        return expectDouble(evaluate(environment));
+    }
+
+    static double expectDouble(Object value) {
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    <T extends ExprNode> T replace(T replacement) {
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        return replacement;
+    }
+
+    static class Constant extends ExprNode {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return value;
+        }
+    }
+
+    static class LocalGet extends ExprNode {
+        final int depth;
+        final int slot;
+
+        LocalGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return environment.getAt(depth, slot);
+        }
+    }
+
+    static class LocalSet extends ExprNode {
+        final int depth;
+        final int slot;
+        ExprNode value;
+
+        LocalSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (value == oldChild) value = newChild;
+        }
+    }
+
+    // A local some closure captures lives in a box in its slot.
+    static class BoxedGet extends ExprNode {
+        final int depth;
+        final int slot;
+
+        BoxedGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return ((Upvalue) environment.getAt(depth, slot)).value;
+        }
+    }
+
+    static class BoxedSet extends ExprNode {
+        final int depth;
+        final int slot;
+        ExprNode value;
+
+        BoxedSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            ((Upvalue) environment.getAt(depth, slot)).value = result;
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (value == oldChild) value = newChild;
+        }
+    }
+
+    // A variable of enclosing code, read through the running function.
+    static class UpvalueGet extends ExprNode {
+        final int index;
+
+        UpvalueGet(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return NodeFunction.upvalue(index).value;
+        }
+    }
+
+    static class UpvalueSet extends ExprNode {
+        final int index;
+        ExprNode value;
+
+        UpvalueSet(int index, ExprNode value) {
+            this.index = index;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            NodeFunction.upvalue(index).value = result;
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (value == oldChild) value = newChild;
+        }
+    }
+
+    // Globals are linked to their cell at compile time; the cell stays the
+    // same however often the name is redefined.
+    static class GlobalGet extends ExprNode {
+        final GlobalCell cell;
+        final Token name;
+
+        GlobalGet(Environment globals, Token name) {
+            this.cell = globals.cell(name.lexeme);
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return cell.get(name);
+        }
+    }
+
+    static class GlobalSet extends ExprNode {
+        final GlobalCell cell;
+        final Token name;
+        ExprNode value;
+
+        GlobalSet(Environment globals, Token name, ExprNode value) {
+            this.cell = globals.cell(name.lexeme);
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            cell.assign(name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (value == oldChild) value = newChild;
+        }
+    }
+
+    // Binary operators. The compiler emits UninitializedBinary; its first
+    // evaluation looks at the operand types and rewrites it into a node
+    // specialized for them. A specialized node whose guess stops holding
+    // rewrites itself once more into the generic node for its operator.
+    // When a profile is in use each rewrite is recorded, and the next run
+    // starts from the node this one ended on.
+
+    static final String NUMBER = "number";
+    static final String STRING = "string";
+    static final String GENERIC = "generic";
+
+    abstract static class Binary extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+        final Token operator;
+        private Profile profile;
+        private Expr.Binary site;
+
+        Binary(ExprNode left, ExprNode right, Token operator) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.operator = operator;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object l = left.evaluate(environment);
+            Object r = right.evaluate(environment);
+            return apply(l, r);
+        }
+
+        abstract Object apply(Object left, Object right);
+
+        // The operand kind this node is specialized for.
+        String kind() {
+            return GENERIC;
+        }
+
+        void profiledAs(Profile profile, Expr.Binary site) {
+            this.profile = profile;
+            this.site = site;
+        }
+
+        Binary rewrite(Binary replacement) {
+            replacement.profiledAs(profile, site);
+            if (profile != null) profile.put(site, replacement.kind());
+            return replace(replacement);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (left == oldChild) left = newChild;
+            if (right == oldChild) right = newChild;
+        }
+
+        void checkNumberOperands(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return;
+            throw new RuntimeError(operator, "Operands must be a numbers.");
+        }
+
+        static Binary specialized(String kind, ExprNode left, ExprNode right, Token operator) {
+            boolean numbers = kind.equals(NUMBER);
+
+            switch (operator.type) {
+                case PLUS:
+                    if (numbers) return new AddDouble(left, right, operator);
+                    if (kind.equals(STRING)) return new AddString(left, right, operator);
+                    return new Add(left, right, operator);
+                case MINUS:
+                    return numbers ? new SubtractDouble(left, right, operator) : new Subtract(left, right, operator);
+                case STAR:
+                    return numbers ? new MultiplyDouble(left, right, operator) : new Multiply(left, right, operator);
+                case SLASH:
+                    return numbers ? new DivideDouble(left, right, operator) : new Divide(left, right, operator);
+                case GREATER:
+                    return numbers ? new GreaterDouble(left, right, operator) : new Greater(left, right, operator);
+                case GREATER_EQUAL:
+                    return numbers ? new GreaterEqualDouble(left, right, operator) : new GreaterEqual(left, right, operator);
+                case LESS:
+                    return numbers ? new LessDouble(left, right, operator) : new Less(left, right, operator);
+                case LESS_EQUAL:
+                    return numbers ? new LessEqualDouble(left, right, operator) : new LessEqual(left, right, operator);
+                case BANG_EQUAL:
+                    return new NotEqual(left, right, operator);
+                default:
+                    return new Equal(left, right, operator);
+            }
+        }
+    }
+
+    static class UninitializedBinary extends Binary {
+        UninitializedBinary(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object l, Object r) {
+            String kind = GENERIC;
+            if (l instanceof Double && r instanceof Double) {
+                kind = NUMBER;
+            } else if (Rope.isString(l)) {
+                kind = STRING;
+            }
+            return rewrite(specialized(kind, left, right, operator)).apply(l, r);
+        }
+    }
+
+    // Both operands were numbers so far: children are asked for unboxed
+    // doubles, and nested arithmetic never allocates intermediate boxes.
+    abstract static class DoubleBinary extends Binary {
+        DoubleBinary(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            double l;
+            try {
+                l = left.executeDouble(environment);
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+
+            double r;
+            try {
+                r = right.executeDouble(environment);
+            } catch (UnexpectedResult e) {
+                return deoptimize(l, e.result);
+            }
+            return compute(l, r);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return compute((double) left, (double) right);
+            }
+            return deoptimize(left, right);
+        }
+
+        abstract Object compute(double left, double right);
+
+        abstract Binary generic();
+
+        @Override
+        String kind() {
+            return NUMBER;
+        }
+
+        Object deoptimize(Object l, Object r) {
+            return rewrite(generic()).apply(l, r);
+        }
+    }
+
+    // Arithmetic whose result is itself a number, so it can hand that number
+    // to a numeric parent without boxing it.
+    abstract static class DoubleArithmetic extends DoubleBinary {
+        DoubleArithmetic(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double executeDouble(Environment environment) {
+            double l;
+            try {
+                l = left.executeDouble(environment);
+            } catch (UnexpectedResult e) {
+                return expectDouble(deoptimize(e.result, right.evaluate(environment)));
+            }
+
+            double r;
+            try {
+                r = right.executeDouble(environment);
+            } catch (UnexpectedResult e) {
+                return expectDouble(deoptimize(l, e.result));
+            }
+            return computeDouble(l, r);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return computeDouble(left, right);
+        }
+
+        abstract double computeDouble(double left, double right);
+    }
+
+    static class Add extends Binary {
+        Add(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left + (double) right;
+            }
+            if (Rope.isString(left)) {
+                return Rope.concat(left, right);
+            } else if (Rope.isString(right)) {
+                return Rope.concat(right, left);
+            }
+
+            throw new RuntimeError(operator, "Operands don't match. Left: " + left + ", Right: " + right + ", Types: " + (left == null ? "null" : left.getClass().getSimpleName()) + ", " + (right == null ? "null" : right.getClass().getSimpleName()));
+        }
+    }
+
+    static class AddDouble extends DoubleArithmetic {
+        AddDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double computeDouble(double left, double right) {
+            return left + right;
+        }
+
+        @Override
+        Binary generic() {
+            return new Add(left, right, operator);
+        }
+    }
+
+    // Covers both string + string and string + number.
+    static class AddString extends Binary {
+        AddString(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            if (Rope.isString(left) && right != null) {
+                return Rope.concat(left, right);
+            }
+            return rewrite(new Add(this.left, this.right, operator)).apply(left, right);
+        }
+
+        @Override
+        String kind() {
+            return STRING;
+        }
+    }
+
+    static class Subtract extends Binary {
+        Subtract(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            return (double) left - (double) right;
+        }
+    }
+
+    static class SubtractDouble extends DoubleArithmetic {
+        SubtractDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double computeDouble(double left, double right) {
+            return left - right;
+        }
+
+        @Override
+        Binary generic() {
+            return new Subtract(left, right, operator);
+        }
+    }
+
+    static class Multiply extends Binary {
+        Multiply(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            return (double) left * (double) right;
+        }
+    }
+
+    static class MultiplyDouble extends DoubleArithmetic {
+        MultiplyDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double computeDouble(double left, double right) {
+            return left * right;
+        }
+
+        @Override
+        Binary generic() {
+            return new Multiply(left, right, operator);
+        }
+    }
+
+    static class Divide extends Binary {
+        Divide(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            if ((Double) right == 0) {
+                throw new RuntimeError(operator, "Cannot divide by zero.");
+            }
+            return (double) left / (double) right;
+        }
+    }
+
+    static class DivideDouble extends DoubleArithmetic {
+        DivideDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double computeDouble(double left, double right) {
+            if (right == 0) {
+                throw new RuntimeError(operator, "Cannot divide by zero.");
+            }
+            return left / right;
+        }
+
+        @Override
+        Binary generic() {
+            return new Divide(left, right, operator);
+        }
+    }
+
+    static class Greater extends Binary {
+        Greater(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            return (double) left > (double) right;
+        }
+    }
+
+    static class GreaterDouble extends DoubleBinary {
+        GreaterDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left > right;
+        }
+
+        @Override
+        Binary generic() {
+            return new Greater(left, right, operator);
+        }
+    }
+
+    static class GreaterEqual extends Binary {
+        GreaterEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            return (double) left >= (double) right;
+        }
+    }
+
+    static class GreaterEqualDouble extends DoubleBinary {
+        GreaterEqualDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left >= right;
+        }
+
+        @Override
+        Binary generic() {
+            return new GreaterEqual(left, right, operator);
+        }
+    }
+
+    static class Less extends Binary {
+        Less(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            return (double) left < (double) right;
+        }
+    }
+
+    static class LessDouble extends DoubleBinary {
+        LessDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left < right;
+        }
+
+        @Override
+        Binary generic() {
+            return new Less(left, right, operator);
+        }
+    }
+
+    static class LessEqual extends Binary {
+        LessEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            checkNumberOperands(left, right);
+            return (double) left <= (double) right;
+        }
+    }
+
+    static class LessEqualDouble extends DoubleBinary {
+        LessEqualDouble(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left <= right;
+        }
+
+        @Override
+        Binary generic() {
+            return new LessEqual(left, right, operator);
+        }
+    }
+
+    static class Equal extends Binary {
+        Equal(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            return isEqual(left, right);
+        }
+    }
+
+    static class NotEqual extends Binary {
+        NotEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object apply(Object left, Object right) {
+            return !isEqual(left, right);
+        }
+    }
+
+    // Unary and control flow
+
+    static class Negate extends ExprNode {
+        ExprNode right;
+        final Token operator;
+
+        Negate(ExprNode right, Token operator) {
+            this.right = adopt(right);
+            this.operator = operator;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return negate(right.evaluate(environment));
+        }
+
+        Object negate(Object value) {
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+            return -(double) value;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (right == oldChild) right = newChild;
+        }
+    }
+
+    // Numbers are the only valid operand, so negation starts out specialized
+    // for them and only falls back to the generic node to report the error.
+    static class NegateDouble extends Negate {
+        NegateDouble(ExprNode right, Token operator) {
+            super(right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return executeDouble(environment);
+        }
+
+        @Override
+        double executeDouble(Environment environment) {
+            try {
+                return -right.executeDouble(environment);
+            } catch (UnexpectedResult e) {
+                return expectDouble(replace(new Negate(right, operator)).negate(e.result));
+            }
+        }
+    }
+
+    static class Not extends ExprNode {
+        ExprNode right;
+
+        Not(ExprNode right) {
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return !isTruthy(right.evaluate(environment));
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (right == oldChild) right = newChild;
+        }
+    }
+
+    static class And extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+
+        And(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = left.evaluate(environment);
+            if (!isTruthy(value)) return value;
+            return right.evaluate(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (left == oldChild) left = newChild;
+            if (right == oldChild) right = newChild;
+        }
+    }
+
+    static class Or extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+
+        Or(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = left.evaluate(environment);
+            if (isTruthy(value)) return value;
+            return right.evaluate(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (left == oldChild) left = newChild;
+            if (right == oldChild) right = newChild;
+        }
+    }
+
+    static class Ternary extends ExprNode {
+        ExprNode condition;
+        ExprNode thenValue;
+        ExprNode elseValue;
+
+        Ternary(ExprNode condition, ExprNode thenValue, ExprNode elseValue) {
+            this.condition = adopt(condition);
+            this.thenValue = adopt(thenValue);
+            this.elseValue = adopt(elseValue);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (isTruthy(condition.evaluate(environment))) {
+                return thenValue.evaluate(environment);
+            }
+            return elseValue.evaluate(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (condition == oldChild) condition = newChild;
+            if (thenValue == oldChild) thenValue = newChild;
+            if (elseValue == oldChild) elseValue = newChild;
+        }
+    }
+
+    // Calls and objects
+
+    static class Call extends ExprNode {
+        ExprNode callee;
+        final ExprNode[] arguments;
+        final Token paren;
+
+        Call(ExprNode callee, ExprNode[] arguments, Token paren) {
+            this.callee = adopt(callee);
+            this.arguments = arguments;
+            this.paren = paren;
+            for (ExprNode argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            NodeCallable callable = callee(environment);
+            return invoke(callable, arguments(environment, callable));
+        }
+
+        NodeCallable callee(Environment environment) {
+            Object function = callee.evaluate(environment);
+
+            if (!(function instanceof NodeCallable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes.");
+            }
+            return (NodeCallable) function;
+        }
+
+        Object[] arguments(Environment environment, NodeCallable callable) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].evaluate(environment);
+            }
+
+            if (values.length != callable.arity()) {
+                throw new RuntimeError(paren, "Expected " + callable.arity() + " but got " + values.length + " arguments.");
+            }
+            return values;
+        }
+
+        Object invoke(NodeCallable callable, Object[] values) {
+            // Only the innermost call catches the overflow; the callers
+            // further out see the RuntimeError it becomes.
+            try {
+                return callable.call(values);
+            } catch (StackOverflowError e) {
+                throw new RuntimeError(paren, "Stack overflow.");
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (callee == oldChild) callee = newChild;
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == oldChild) arguments[i] = newChild;
+            }
+        }
+    }
+
+    static class Get extends ExprNode {
+        ExprNode object;
+        final Token name;
+
+        Get(ExprNode object, Token name) {
+            this.object = adopt(object);
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = object.evaluate(environment);
+
+            if (value instanceof NodeInstance) {
+                return ((NodeInstance) value).get(name);
+            }
+
+            if (value instanceof NodeClass) {
+                NodeFunction staticMethod = ((NodeClass) value).findStaticMethod(name.lexeme);
+                if (staticMethod != null) {
+                    return staticMethod;
+                }
+            }
+
+            throw new RuntimeError(name, "Can only get functions and classes.");
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (object == oldChild) object = newChild;
+        }
+    }
+
+    static class Set extends ExprNode {
+        ExprNode object;
+        final Token name;
+        ExprNode value;
+
+        Set(ExprNode object, Token name, ExprNode value) {
+            this.object = adopt(object);
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object target = object.evaluate(environment);
+            if (!(target instanceof NodeInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.evaluate(environment);
+            ((NodeInstance) target).set(name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (object == oldChild) object = newChild;
+            if (value == oldChild) value = newChild;
+        }
+    }
+
+    // "super" is always an upvalue of the method reading it; the receiver
+    // is read like any other "this".
+    static class Super extends ExprNode {
+        final int upvalue;
+        ExprNode receiver;
+        final Token method;
+
+        Super(int upvalue, ExprNode receiver, Token method) {
+            this.upvalue = upvalue;
+            this.receiver = adopt(receiver);
+            this.method = method;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            NodeClass superclass = (NodeClass) NodeFunction.upvalue(upvalue).value;
+            NodeFunction function = superclass.findMethod(method.lexeme);
+
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property " + method.lexeme);
+            }
+            return function.bind((NodeInstance) receiver.evaluate(environment));
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (receiver == oldChild) receiver = newChild;
+        }
+    }
+
+    static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) {
+            return (boolean)object;
+        }
+        return true;
+    }
+
+    static boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        if (right instanceof Rope) return right.equals(left);
+        return left.equals(right);
+    }
+}
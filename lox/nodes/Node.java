@@ -0,0 +1,18 @@
+package lox.nodes;
+
+// Base of every executable node. Nodes know their parent so a node that has
+// learned something about its operands can swap itself for a specialized
+// version in place.
+abstract class Node {
+    Node parent;
+
+    // Nodes with expression children swap the matching field here.
+    void replaceChild(ExprNode oldChild, ExprNode newChild) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children.");
+    }
+
+    <T extends Node> T adopt(T child) {
+        if (child != null) child.parent = this;
+        return child;
+    }
+}
@@ -0,0 +1,6 @@
+package lox.nodes;
+
+interface NodeCallable {
+    int arity(); // Number of arguments.
+    Object call(Object[] arguments);
+}
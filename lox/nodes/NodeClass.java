@@ -0,0 +1,54 @@
+package lox.nodes;
+
+import java.util.Map;
+
+class NodeClass implements NodeCallable {
+    final String name;
+    final NodeClass superclass;
+    private final Map<String, NodeFunction> methods;
+    private final Map<String, NodeFunction> staticMethods;
+
+    NodeClass(String name, NodeClass superclass, Map<String, NodeFunction> methods, Map<String, NodeFunction> staticMethods) {
+        this.name = name;
+        this.superclass = superclass;
+        this.methods = methods;
+        this.staticMethods = staticMethods;
+    }
+
+    NodeFunction findMethod(String name) {
+        NodeFunction method = methods.get(name);
+        if (method != null) return method;
+
+        if (superclass != null) {
+            return superclass.findMethod(name);
+        }
+        return null;
+    }
+
+    NodeFunction findStaticMethod(String name) {
+        return staticMethods.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public Object call(Object[] arguments) {
+        NodeInstance instance = new NodeInstance(this);
+        NodeFunction initializer = findMethod("init");
+        if (initializer != null) {
+            initializer.bind(instance).call(arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public int arity() {
+        NodeFunction initializer = findMethod("init");
+
+        if (initializer == null) return 0;
+        return initializer.arity();
+    }
+}
@@ -0,0 +1,219 @@
+package lox.nodes;
+
+import lox.ast.Expr;
+import lox.ast.Stmt;
+import lox.profile.Profile;
+import lox.runtime.Environment;
+import lox.scanner.Token;
+import lox.util.TokenType;
+
+import java.util.List;
+
+// Turns a resolved AST into ExprNode/StmtNode trees. Variables compile to
+// the locations the resolver stored on the AST, so frames are laid out the
+// same way the tree-walker lays them out.
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+
+    private final Environment globals;
+    private final Profile profile;
+
+    NodeCompiler(Environment globals, Profile profile) {
+        this.globals = globals;
+        this.profile = profile;
+    }
+
+    StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Statements
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        return new StmtNode.Block(compile(stmt.statements), stmt.scoped);
+    }
+
+    @Override
+    public StmtNode visitClassDefStmt(Stmt.ClassDef stmt) {
+        ExprNode superclass = stmt.superclass == null ? null : compile(stmt.superclass);
+
+        NodeFunction.Code[] methods = new NodeFunction.Code[stmt.methods.size()];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = function(stmt.methods.get(i));
+        }
+
+        NodeFunction.Code[] staticMethods = new NodeFunction.Code[stmt.staticMethods.size()];
+        for (int i = 0; i < staticMethods.length; i++) {
+            staticMethods[i] = function(stmt.staticMethods.get(i));
+        }
+
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        return new StmtNode.ClassDef(stmt.name, stmt.slot, stmt.boxed, superclass, superclassName, methods, staticMethods);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        return new StmtNode.Function(function(stmt), stmt.slot, stmt.boxed);
+    }
+
+    @Override
+    public StmtNode visitIfConditionStmt(Stmt.IfCondition stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+        StmtNode elseBranch = stmt.elseBranch == null ? null : compile(stmt.elseBranch);
+        return new StmtNode.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmtStmt(Stmt.ReturnStmt stmt) {
+        if (stmt.tailCall) return new StmtNode.TailReturn((ExprNode.Call) compile(stmt.value));
+        return new StmtNode.Return(stmt.value == null ? null : compile(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        return new StmtNode.Define(stmt.name.lexeme, stmt.slot, stmt.boxed, initializer);
+    }
+
+    @Override
+    public StmtNode visitWhileLoopStmt(Stmt.WhileLoop stmt) {
+        return new StmtNode.While(compile(stmt.condition), compile(stmt.body));
+    }
+
+    // Expressions
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        if (expr.depth >= 0) {
+            if (expr.boxed) return new ExprNode.BoxedSet(expr.depth, expr.slot, value);
+            return new ExprNode.LocalSet(expr.depth, expr.slot, value);
+        }
+        if (expr.upvalue >= 0) return new ExprNode.UpvalueSet(expr.upvalue, value);
+        return new ExprNode.GlobalSet(globals, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        // A profiled operator starts out as the node an earlier run settled on.
+        String kind = profile == null ? null : profile.get(expr);
+        ExprNode.Binary node = kind == null
+                ? new ExprNode.UninitializedBinary(left, right, expr.operator)
+                : ExprNode.Binary.specialized(kind, left, right, expr.operator);
+        node.profiledAs(profile, expr);
+        return node;
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode callee = compile(expr.callee);
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        return new ExprNode.Call(callee, arguments, expr.paren);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.object), expr.name);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value));
+    }
+
+    @Override
+    public ExprNode visitLoxSuperExpr(Expr.LoxSuper expr) {
+        return new ExprNode.Super(expr.upvalue, compile(expr.receiver), expr.method);
+    }
+
+    @Override
+    public ExprNode visitLoxThisExpr(Expr.LoxThis expr) {
+        if (expr.upvalue >= 0) return new ExprNode.UpvalueGet(expr.upvalue);
+        return local(expr.depth, expr.slot, expr.boxed);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(left, right);
+        }
+        return new ExprNode.And(left, right);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG: return new ExprNode.Not(right);
+            case MINUS: return new ExprNode.NegateDouble(right, expr.operator);
+        }
+        throw new IllegalStateException("Not a unary operator: " + expr.operator.lexeme);
+    }
+
+    @Override
+    public ExprNode visitTernaryExpr(Expr.Ternary expr) {
+        return new ExprNode.Ternary(compile(expr.condition), compile(expr.trueCondition), compile(expr.falseCondition));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        // A depth of -1 is the resolver's mark for a global.
+        if (expr.depth >= 0) return local(expr.depth, expr.slot, expr.boxed);
+        if (expr.upvalue >= 0) return new ExprNode.UpvalueGet(expr.upvalue);
+        return new ExprNode.GlobalGet(globals, expr.name);
+    }
+
+    private ExprNode local(int depth, int slot, boolean boxed) {
+        if (boxed) return new ExprNode.BoxedGet(depth, slot);
+        return new ExprNode.LocalGet(depth, slot);
+    }
+
+    private NodeFunction.Code function(Stmt.Function stmt) {
+        NodeFunction.Code code = new NodeFunction.Code(stmt, globals);
+        code.body = compile(stmt.body);
+        return code;
+    }
+}
@@ -0,0 +1,138 @@
+package lox.nodes;
+
+import lox.ast.Capture;
+import lox.ast.Stmt;
+import lox.runtime.Environment;
+import lox.runtime.Upvalue;
+
+class NodeFunction implements NodeCallable {
+
+    // The compiled, closure-independent part of a function declaration, laid
+    // out as the resolver placed it.
+    static class Code {
+        final String name;
+        final int arity;
+        final Environment globals;
+        final boolean scoped;
+        final int[] boxedParams;
+        final Capture[] captures;
+        StmtNode[] body;
+
+        Code(Stmt.Function declaration, Environment globals) {
+            this.name = declaration.name.lexeme;
+            this.arity = declaration.params.size();
+            this.globals = globals;
+            this.scoped = declaration.scoped;
+            this.boxedParams = declaration.boxedParams;
+            this.captures = declaration.captures;
+        }
+
+        // The upvalues of a new closure of this code, taken from the
+        // environment it is made in and the function running there.
+        Upvalue[] capture(Environment environment) {
+            Upvalue[] upvalues = new Upvalue[captures.length];
+            for (int i = 0; i < upvalues.length; i++) {
+                Capture capture = captures[i];
+                if (capture.local) {
+                    upvalues[i] = (Upvalue) environment.getAt(capture.depth, capture.index);
+                } else {
+                    upvalues[i] = running.upvalues[capture.index];
+                }
+            }
+            return upvalues;
+        }
+    }
+
+    // Completes a body whose return was a call to another Lox function.
+    static class TailCall {
+        final NodeFunction function;
+        final Object[] arguments;
+
+        TailCall(NodeFunction function, Object[] arguments) {
+            this.function = function;
+            this.arguments = arguments;
+        }
+    }
+
+    // The function whose body is running, whose upvalues the nodes in it
+    // read. Null at the top level, which has none.
+    private static NodeFunction running = null;
+
+    private final Code code;
+    private final Upvalue[] upvalues;
+    private final Object receiver;
+    private final boolean isInitializer;
+
+    NodeFunction(Code code, Upvalue[] upvalues, boolean isInitializer) {
+        this(code, upvalues, isInitializer, null);
+    }
+
+    private NodeFunction(Code code, Upvalue[] upvalues, boolean isInitializer, Object receiver) {
+        this.code = code;
+        this.upvalues = upvalues;
+        this.isInitializer = isInitializer;
+        this.receiver = receiver;
+    }
+
+    static Upvalue upvalue(int index) {
+        return running.upvalues[index];
+    }
+
+    @Override
+    public int arity() {
+        return code.arity;
+    }
+
+    // Runs as a trampoline: when the body ends in a tail call, the callee
+    // takes over this loop instead of growing the Java stack.
+    @Override
+    public Object call(Object[] arguments) {
+        NodeFunction caller = running;
+        NodeFunction function = this;
+
+        try {
+            while (true) {
+                running = function;
+                Object completion = StmtNode.executeAll(function.code.body, function.frame(arguments));
+
+                if (completion instanceof TailCall) {
+                    TailCall tailCall = (TailCall) completion;
+                    function = tailCall.function;
+                    arguments = tailCall.arguments;
+                    continue;
+                }
+                if (function.isInitializer) return function.receiver;
+                return completion == StmtNode.NORMAL ? null : completion;
+            }
+        } finally {
+            running = caller;
+        }
+    }
+
+    // A frame reaches no further than the function's own locals; everything
+    // else comes through an upvalue or is a global. A function with no
+    // receiver, parameters or locals has none at all.
+    private Environment frame(Object[] arguments) {
+        if (!code.scoped) return code.globals;
+
+        Environment environment = new Environment(code.globals);
+        if (receiver != null) environment.define("this", receiver);
+        for (Object argument : arguments) {
+            environment.define(null, argument);
+        }
+        for (int slot : code.boxedParams) {
+            environment.defineAt(slot, new Upvalue(environment.getAt(0, slot)));
+        }
+        return environment;
+    }
+
+    // Methods keep their receiver in slot zero of their own frame.
+    NodeFunction bind(NodeInstance instance) {
+        return new NodeFunction(code, upvalues, isInitializer, instance);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + code.name + ">";
+    }
+}
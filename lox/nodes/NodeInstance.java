@@ -0,0 +1,36 @@
+package lox.nodes;
+
+import lox.scanner.Token;
+import lox.util.RuntimeError;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class NodeInstance {
+    private final NodeClass loxClass;
+    private final Map<String, Object> fields = new HashMap<>();
+
+    NodeInstance(NodeClass loxClass) {
+        this.loxClass = loxClass;
+    }
+
+    @Override
+    public String toString() {
+        return loxClass.name + " instance";
+    }
+
+    Object get(Token name) {
+        Object value = fields.get(name.lexeme);
+        if (value != null || fields.containsKey(name.lexeme)) {
+            return value;
+        }
+        NodeFunction method = loxClass.findMethod(name.lexeme);
+        if (method != null) return method.bind(this);
+
+        throw new RuntimeError(name, "Undefined property " + name.lexeme +  ".");
+    }
+
+    void set(Token name, Object value) {
+        fields.put(name.lexeme, value);
+    }
+}
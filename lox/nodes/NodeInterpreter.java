@@ -0,0 +1,78 @@
+package lox.nodes;
+
+import lox.Lox;
+import lox.ast.Stmt;
+import lox.profile.Profile;
+import lox.runtime.Environment;
+import lox.util.RuntimeError;
+
+import java.util.Collections;
+import java.util.List;
+
+// Entry point of the node-tree backend: compiles each batch of resolved
+// statements into executable nodes and runs them against its own globals.
+public class NodeInterpreter {
+
+    private final Environment globals = new Environment();
+    private Profile profile = null;
+
+    public NodeInterpreter() {
+        globals.define("clock", new NodeCallable() {
+            @Override
+            public int arity() {return 0;}
+
+            @Override
+            public Object call(Object[] arguments) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+
+            @Override
+            public String toString() {return "<native fn>"; }
+        });
+    }
+
+    // Operators then start out specialized the way an earlier run left them,
+    // and record how they end up this time.
+    public void useProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    public void interpret(List<Stmt> statements) {
+        StmtNode[] program = new NodeCompiler(globals, profile).compile(statements);
+        try {
+            for (StmtNode statement : program) {
+                statement.execute(globals);
+            }
+        } catch (RuntimeError e) {
+            Lox.runtimeError(e);
+        }
+    }
+
+    // Evaluates an expression statement once and prints its value, unless
+    // that is nil. The expression is run under its statement node, which
+    // takes the node it specializes into.
+    public void echo(Stmt.Expression statement) {
+        StmtNode[] program = new NodeCompiler(globals, profile).compile(Collections.singletonList(statement));
+        try {
+            Object value = ((StmtNode.Expression) program[0]).expression.evaluate(globals);
+            if (value != null) {
+                System.out.println(stringify(value));
+            }
+        } catch (RuntimeError e) {
+            Lox.runtimeError(e);
+        }
+    }
+
+    static String stringify(Object value) {
+        if (value == null) return "nil";
+
+        if (value instanceof Double) {
+            String text = value.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,299 @@
+package lox.nodes;
+
+import lox.runtime.Environment;
+import lox.runtime.Upvalue;
+import lox.scanner.Token;
+import lox.util.RuntimeError;
+
+import java.util.HashMap;
+import java.util.Map;
+
+abstract class StmtNode extends Node {
+
+    // Returned by execute when control falls through to the next statement.
+    // Anything else is the value of a return statement unwinding to its call.
+    static final Object NORMAL = new Object();
+
+    abstract Object execute(Environment environment);
+
+    static Object executeAll(StmtNode[] statements, Environment environment) {
+        for (StmtNode statement : statements) {
+            Object completion = statement.execute(environment);
+            if (completion != NORMAL) return completion;
+        }
+        return NORMAL;
+    }
+
+    static class Expression extends StmtNode {
+        ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            expression.evaluate(environment);
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (expression == oldChild) expression = newChild;
+        }
+    }
+
+    static class Print extends StmtNode {
+        ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            System.out.println(NodeInterpreter.stringify(expression.evaluate(environment)));
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (expression == oldChild) expression = newChild;
+        }
+    }
+
+    // Globals are defined by name, locals at the slot the resolver gave them.
+    // A local some closure captures is kept in a box the closure shares.
+    static void declare(Environment environment, String name, int slot, boolean boxed, Object value) {
+        if (slot < 0) {
+            environment.define(name, value);
+        } else {
+            environment.defineAt(slot, boxed ? new Upvalue(value) : value);
+        }
+    }
+
+    static Upvalue declareBox(Environment environment, int slot) {
+        Upvalue box = new Upvalue(null);
+        environment.defineAt(slot, box);
+        return box;
+    }
+
+    static class Define extends StmtNode {
+        final String name;
+        final int slot;
+        final boolean boxed;
+        ExprNode initializer;
+
+        Define(String name, int slot, boolean boxed, ExprNode initializer) {
+            this.name = name;
+            this.slot = slot;
+            this.boxed = boxed;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = initializer == null ? null : initializer.evaluate(environment);
+            declare(environment, name, slot, boxed, value);
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (initializer == oldChild) initializer = newChild;
+        }
+    }
+
+    // Blocks that declare nothing, or whose locals live in the enclosing
+    // environment, run without one of their own.
+    static class Block extends StmtNode {
+        final StmtNode[] statements;
+        final boolean scoped;
+
+        Block(StmtNode[] statements, boolean scoped) {
+            this.statements = statements;
+            this.scoped = scoped;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeAll(statements, scoped ? new Environment(environment) : environment);
+        }
+    }
+
+    static class If extends StmtNode {
+        ExprNode condition;
+        final StmtNode thenBranch;
+        final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = adopt(condition);
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (ExprNode.isTruthy(condition.evaluate(environment))) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (condition == oldChild) condition = newChild;
+        }
+    }
+
+    static class While extends StmtNode {
+        ExprNode condition;
+        final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            while (ExprNode.isTruthy(condition.evaluate(environment))) {
+                Object completion = body.execute(environment);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (condition == oldChild) condition = newChild;
+        }
+    }
+
+    static class Return extends StmtNode {
+        ExprNode value;
+
+        Return(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value == null ? null : value.evaluate(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (value == oldChild) value = newChild;
+        }
+    }
+
+    // A return of a call. A Lox function is handed back to the running
+    // NodeFunction to call in place of the current one, so tail recursion
+    // runs in constant Java stack.
+    static class TailReturn extends StmtNode {
+        final ExprNode.Call call;
+
+        TailReturn(ExprNode.Call call) {
+            this.call = adopt(call);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            NodeCallable callable = call.callee(environment);
+            Object[] arguments = call.arguments(environment, callable);
+            if (callable instanceof NodeFunction) {
+                return new NodeFunction.TailCall((NodeFunction) callable, arguments);
+            }
+            return call.invoke(callable, arguments);
+        }
+    }
+
+    static class Function extends StmtNode {
+        final NodeFunction.Code code;
+        final int slot;
+        final boolean boxed;
+
+        Function(NodeFunction.Code code, int slot, boolean boxed) {
+            this.code = code;
+            this.slot = slot;
+            this.boxed = boxed;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            // A function that calls itself captures its own box.
+            if (boxed) {
+                Upvalue box = declareBox(environment, slot);
+                box.value = new NodeFunction(code, code.capture(environment), false);
+                return NORMAL;
+            }
+
+            declare(environment, code.name, slot, false, new NodeFunction(code, code.capture(environment), false));
+            return NORMAL;
+        }
+    }
+
+    static class ClassDef extends StmtNode {
+        final Token name;
+        final int slot;
+        final boolean boxed;
+        ExprNode superclass;
+        final Token superclassName;
+        final NodeFunction.Code[] methods;
+        final NodeFunction.Code[] staticMethods;
+
+        ClassDef(Token name, int slot, boolean boxed, ExprNode superclass, Token superclassName, NodeFunction.Code[] methods, NodeFunction.Code[] staticMethods) {
+            this.name = name;
+            this.slot = slot;
+            this.boxed = boxed;
+            this.superclass = adopt(superclass);
+            this.superclassName = superclassName;
+            this.methods = methods;
+            this.staticMethods = staticMethods;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            // Methods that name the class capture its box before the class exists.
+            Upvalue box = boxed ? declareBox(environment, slot) : null;
+            Object parent = null;
+            Environment scope = environment;
+
+            if (superclass != null) {
+                parent = superclass.evaluate(environment);
+                if (!(parent instanceof NodeClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a lox Class.");
+                }
+                // Only methods read "super", always through an upvalue.
+                scope = new Environment(environment);
+                scope.define("super", new Upvalue(parent));
+            }
+
+            Map<String, NodeFunction> methodTable = new HashMap<>();
+            for (NodeFunction.Code method : methods) {
+                methodTable.put(method.name, new NodeFunction(method, method.capture(scope), method.name.equals("init")));
+            }
+
+            Map<String, NodeFunction> staticTable = new HashMap<>();
+            for (NodeFunction.Code method : staticMethods) {
+                staticTable.put(method.name, new NodeFunction(method, method.capture(scope), method.name.equals("init")));
+            }
+
+            NodeClass loxClass = new NodeClass(name.lexeme, (NodeClass) parent, methodTable, staticTable);
+            if (box != null) {
+                box.value = loxClass;
+            } else {
+                declare(environment, name.lexeme, slot, false, loxClass);
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if (superclass == oldChild) superclass = newChild;
+        }
+    }
+}
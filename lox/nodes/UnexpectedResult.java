@@ -0,0 +1,13 @@
+package lox.nodes;
+
+// Thrown by ExprNode.executeDouble when a node produced something other than
+// a number, carrying that value so the caller can fall back without
+// evaluating the operand a second time.
+class UnexpectedResult extends RuntimeException {
+    final Object result;
+
+    UnexpectedResult(Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
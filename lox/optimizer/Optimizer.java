@@ -0,0 +1,384 @@
+package lox.optimizer;
+
+import lox.ast.Expr;
+import lox.ast.LazyBody;
+import lox.ast.Stmt;
+import lox.util.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Simplifies a resolved AST before it runs: folds operators whose operands
+// are literals, prunes branches with constant conditions, unwraps groupings
+// and drops statements after a return. Anything that would raise a runtime
+// error is left in place so the error still happens, with the same message.
+// Arithmetic that can only yield a number is marked numeric, so the
+// interpreter computes it on primitives and boxes only the final result.
+//
+// Nodes are rebuilt only when one of their children changed. Variables,
+// this and super are never replaced; a rebuilt node copies whatever the
+// resolver stored on the one it replaces.
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    public List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        boolean changed = false;
+
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt result = optimize(statement);
+            if (result != null) optimized.add(result);
+            if (result != statement) changed = true;
+
+            // Nothing after a return in the same list can run.
+            if (result instanceof Stmt.ReturnStmt) {
+                if (i < statements.size() - 1) changed = true;
+                break;
+            }
+        }
+
+        return changed ? optimized : statements;
+    }
+
+    // Null means the statement does nothing and can be dropped.
+    public Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // For positions that need some statement even when it was optimized away.
+    private Stmt orEmpty(Stmt stmt) {
+        return stmt == null ? new Stmt.Block(new ArrayList<>()) : stmt;
+    }
+
+    // Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+
+        Stmt.Block result = new Stmt.Block(statements);
+        result.scoped = stmt.scoped;
+        return result;
+    }
+
+    @Override
+    public Stmt visitClassDefStmt(Stmt.ClassDef stmt) {
+        List<Stmt.Function> methods = functions(stmt.methods);
+        List<Stmt.Function> staticMethods = functions(stmt.staticMethods);
+
+        if (methods == stmt.methods && staticMethods == stmt.staticMethods) return stmt;
+
+        Stmt.ClassDef result = new Stmt.ClassDef(stmt.name, stmt.superclass, methods, staticMethods);
+        result.slot = stmt.slot;
+        result.boxed = stmt.boxed;
+        return result;
+    }
+
+    private List<Stmt.Function> functions(List<Stmt.Function> functions) {
+        List<Stmt.Function> optimized = new ArrayList<>();
+        boolean changed = false;
+
+        for (Stmt.Function function : functions) {
+            Stmt.Function result = (Stmt.Function) optimize(function);
+            optimized.add(result);
+            if (result != function) changed = true;
+        }
+
+        return changed ? optimized : functions;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.body instanceof LazyBody) return stmt; // Optimized once it is read.
+        List<Stmt> body = optimize(stmt.body);
+        if (body == stmt.body) return stmt;
+
+        Stmt.Function result = new Stmt.Function(stmt.name, stmt.params, body);
+        result.slot = stmt.slot;
+        result.boxed = stmt.boxed;
+        result.scoped = stmt.scoped;
+        result.captures = stmt.captures;
+        result.boxedParams = stmt.boxedParams;
+        return result;
+    }
+
+    @Override
+    public Stmt visitIfConditionStmt(Stmt.IfCondition stmt) {
+        Expr condition = optimize(stmt.condition);
+        Stmt thenBranch = optimize(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+
+        if (condition instanceof Expr.Literal) {
+            return isTruthy(((Expr.Literal) condition).value) ? thenBranch : elseBranch;
+        }
+
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.IfCondition(condition, orEmpty(thenBranch), elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmtStmt(Stmt.ReturnStmt stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        // Unwrapping a grouping can put a call in tail position.
+        Stmt.ReturnStmt result = new Stmt.ReturnStmt(stmt.keyword, value);
+        result.tailCall = value instanceof Expr.Call;
+        return result;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+        result.slot = stmt.slot;
+        result.boxed = stmt.boxed;
+        return result;
+    }
+
+    @Override
+    public Stmt visitWhileLoopStmt(Stmt.WhileLoop stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if (condition instanceof Expr.Literal && !isTruthy(((Expr.Literal) condition).value)) {
+            return null;
+        }
+
+        Stmt body = optimize(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.WhileLoop(condition, orEmpty(body));
+    }
+
+    // Expressions
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign result = new Expr.Assign(expr.name, value);
+        result.depth = expr.depth;
+        result.slot = expr.slot;
+        result.boxed = expr.boxed;
+        result.upvalue = expr.upvalue;
+        return result;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Expr folded = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (folded != null) return folded;
+        }
+
+        Expr.Binary result = expr;
+        if (left != expr.left || right != expr.right) {
+            result = new Expr.Binary(left, expr.operator, right);
+        }
+        result.numeric = isNumeric(result);
+        return result;
+    }
+
+    // Minus, times and divide yield a number or fail; plus does too when
+    // neither operand can be a string.
+    private boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (!(expr instanceof Expr.Binary)) return false;
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return true;
+            case PLUS:
+                return isNumeric(binary.left) && isNumeric(binary.right);
+        }
+        return false;
+    }
+
+    // Mirrors Interpreter.visitBinaryExpr for the cases that cannot fail.
+    // Returns null for anything that would raise an error at runtime.
+    private Expr fold(TokenType operator, Object left, Object right) {
+        if (operator == TokenType.EQUAL_EQUAL) return new Expr.Literal(isEqual(left, right));
+        if (operator == TokenType.BANG_EQUAL) return new Expr.Literal(!isEqual(left, right));
+
+        if (operator == TokenType.PLUS && left != null && right != null) {
+            if (left instanceof String) return new Expr.Literal(left + right.toString());
+            if (right instanceof String) return new Expr.Literal(right + left.toString());
+        }
+
+        if (!(left instanceof Double && right instanceof Double)) return null;
+        double a = (double) left;
+        double b = (double) right;
+
+        switch (operator) {
+            case PLUS: return new Expr.Literal(a + b);
+            case MINUS: return new Expr.Literal(a - b);
+            case STAR: return new Expr.Literal(a * b);
+            case SLASH:
+                if (b == 0) return null;
+                return new Expr.Literal(a / b);
+            case GREATER: return new Expr.Literal(a > b);
+            case GREATER_EQUAL: return new Expr.Literal(a >= b);
+            case LESS: return new Expr.Literal(a < b);
+            case LESS_EQUAL: return new Expr.Literal(a <= b);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = expressions(expr.arguments);
+
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    private List<Expr> expressions(List<Expr> expressions) {
+        List<Expr> optimized = new ArrayList<>();
+        boolean changed = false;
+
+        for (Expr expression : expressions) {
+            Expr result = optimize(expression);
+            optimized.add(result);
+            if (result != expression) changed = true;
+        }
+
+        return changed ? optimized : expressions;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitLoxSuperExpr(Expr.LoxSuper expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLoxThisExpr(Expr.LoxThis expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // A constant left operand decides whether the right one is needed.
+        if (left instanceof Expr.Literal) {
+            boolean truthy = isTruthy(((Expr.Literal) left).value);
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+
+            switch (expr.operator.type) {
+                case BANG: return new Expr.Literal(!isTruthy(value));
+                case MINUS:
+                    if (value instanceof Double) return new Expr.Literal(-(double) value);
+                    break;
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = optimize(expr.condition);
+        Expr trueCondition = optimize(expr.trueCondition);
+        Expr falseCondition = optimize(expr.falseCondition);
+
+        if (condition instanceof Expr.Literal) {
+            return isTruthy(((Expr.Literal) condition).value) ? trueCondition : falseCondition;
+        }
+
+        if (condition == expr.condition && trueCondition == expr.trueCondition && falseCondition == expr.falseCondition) return expr;
+        return new Expr.Ternary(condition, trueCondition, falseCondition);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    private boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        return left.equals(right);
+    }
+
+    private boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) {
+            return (boolean)object;
+        }
+        return true;
+    }
+}
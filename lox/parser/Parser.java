@@ -2,13 +2,17 @@ package lox.parser;
 
 import lox.ast.Expr;
 import lox.Lox;
+import lox.ast.LazyBody;
 import lox.ast.Stmt;
+import lox.scanner.Scanner;
 import lox.scanner.Token;
 import lox.util.TokenType;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 import static lox.util.TokenType.*;
 
@@ -16,27 +20,62 @@ public class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    // Tokens are pulled from the scanner as parsing needs them; only the
+    // one just consumed and the one being looked at are kept.
+    private final Supplier<Token> tokens;
+    private final LazyBody.Recorder skipped; // Null unless bodies are skipped.
+    private Token previous = null;
+    private Token next;
 
-    private int current = 0;
+    public Parser(Scanner scanner) {
+        this(scanner, false);
+    }
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    // A lazy parser skips the bodies of top-level functions and of the
+    // methods of top-level classes, keeping their tokens in a LazyBody.
+    public Parser(Scanner scanner, boolean lazy) {
+        this(scanner::nextToken, lazy);
     }
 
-    public List<Stmt> parse() {
-        List<Stmt> statements = new ArrayList<>();
+    private Parser(Supplier<Token> tokens, boolean lazy) {
+        this.tokens = tokens;
+        this.skipped = lazy ? new LazyBody.Recorder() : null;
+        this.next = tokens.get();
+    }
 
-        while (!isAtEnd()) {
-            statements.add(declaration());
+    // The statements of a body a lazy parser skipped. Syntax errors in it are
+    // reported as usual, leaving Lox.hadError set.
+    public static List<Stmt> parseBody(LazyBody body) {
+        Iterator<Token> tokens = body.tokens();
+        Parser parser = new Parser(tokens::next, false);
+        try {
+            parser.consume(LEFT_BRACE, "Expect '{' before function body.");
+            return parser.block();
+        } catch (ParseError error) {
+            return null;
         }
-        return statements;
+    }
+
+    // The program is handed out one top-level declaration at a time, so
+    // each can be dealt with before the next is read.
+    public boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // Null if the declaration has a syntax error.
+    public Stmt next() {
+        return declaration(skipped != null);
     }
 
     private Stmt declaration() {
+        return declaration(false);
+    }
+
+    // Bodies are only ever skipped at the top level.
+    private Stmt declaration(boolean skipBodies) {
         try {
-            if (match(CLASS)) return classDeclaration();
-            if (match(FUN)) return function("function");
+            if (match(CLASS)) return classDeclaration(skipBodies);
+            if (match(FUN)) return function("function", skipBodies);
             if (match(VAR)) return varDeclaration();
 
             return statement();
@@ -70,7 +109,7 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
 
-    private Stmt.Function function(String kind) {
+    private Stmt.Function function(String kind, boolean skipBody) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
 
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
@@ -86,12 +125,36 @@ public class Parser {
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
+        if (skipBody) {
+            LazyBody body = skipBody(kind);
+            body.function = new Stmt.Function(name, parameters, body);
+            return body.function;
+        }
+
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
         List<Stmt> body = block();
 
         return new Stmt.Function(name, parameters, body);
     }
 
+    // Records a body's tokens, braces included, finding its end by counting
+    // braces.
+    private LazyBody skipBody(String kind) {
+        skipped.add(consume(LEFT_BRACE, "Expect '{' before " + kind + " body."));
+
+        for (int depth = 1; depth > 0; ) {
+            if (isAtEnd()) {
+                skipped.finish();
+                throw error(peek(), "Expect '}' after block.");
+            }
+            Token token = advance();
+            if (token.type == LEFT_BRACE) depth++;
+            if (token.type == RIGHT_BRACE) depth--;
+            skipped.add(token);
+        }
+        return skipped.finish();
+    }
+
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
@@ -102,7 +165,7 @@ public class Parser {
         return statements;
     }
 
-    private Stmt classDeclaration() {
+    private Stmt classDeclaration(boolean skipBodies) {
         Token name = consume(IDENTIFIER, "Expect class name.");
         Expr.Variable superclass = null;
 
@@ -117,9 +180,9 @@ public class Parser {
 
         while(!check(RIGHT_BRACE) && !isAtEnd()) {
             if (match(CLASS)) {
-                staticMethods.add(function("class"));
+                staticMethods.add(function("class", skipBodies));
             } else {
-                methods.add(function("method"));
+                methods.add(function("method", skipBodies));
             }
         }
 
@@ -468,12 +531,15 @@ public class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = next;
+            next = tokens.get();
+        }
         return previous();
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private boolean isAtEnd() {
@@ -481,6 +547,6 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return next;
     }
 }
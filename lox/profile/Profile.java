@@ -0,0 +1,268 @@
+package lox.profile;
+
+import lox.ast.Expr;
+import lox.ast.Stmt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// What earlier runs of a script learned about it, kept in a sidecar file
+// next to the script. Observations are attached to AST nodes, which are
+// numbered in a fixed walk order so the same source gives the same numbers.
+// A profile written for different source is ignored.
+public final class Profile {
+    // The format version comes first, so a profile numbered another way is
+    // ignored.
+    private static final String HEADER = "# lox profile 2 ";
+
+    private final Path file;
+    private final String hash;
+    private final Map<Object, Integer> sites;
+    private final Map<Integer, String> observations;
+    private boolean changed = false; // Whether anything differs from the file.
+
+    private Profile(Path file, String hash, Map<Object, Integer> sites, Map<Integer, String> observations) {
+        this.file = file;
+        this.hash = hash;
+        this.sites = sites;
+        this.observations = observations;
+    }
+
+    // The hash is the script's ContentHash.
+    public static Profile load(Path script, String hash, List<Stmt> statements) {
+        Path file = script.resolveSibling(script.getFileName() + ".profile");
+        Map<Integer, String> observations = new TreeMap<>();
+
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(HEADER + hash)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    int space = line.indexOf(' ');
+                    if (space < 0) continue;
+                    observations.put(Integer.parseInt(line.substring(0, space)), line.substring(space + 1));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            observations.clear(); // No usable profile yet; start cold.
+        }
+
+        return new Profile(file, hash, new SiteNumbering(statements).sites, observations);
+    }
+
+    // What was last observed at this node, or null.
+    public String get(Object node) {
+        Integer site = sites.get(node);
+        if (site == null) return null;
+        return observations.get(site);
+    }
+
+    public void put(Object node, String observation) {
+        Integer site = sites.get(node);
+        if (site != null && !observation.equals(observations.put(site, observation))) changed = true;
+    }
+
+    // The profile is only a hint, so failing to write it is not an error.
+    // It is written to a temporary file and moved into place, so a run that
+    // dies halfway, or another one saving at the same time, can't leave half
+    // a profile behind.
+    public void save() {
+        if (!changed) return;
+
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER + hash);
+        for (Map.Entry<Integer, String> entry : observations.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue());
+        }
+
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Read-only directory and the like: the next run starts cold.
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // A stray temporary file does no harm.
+            }
+        }
+    }
+
+    // Numbers the nodes profiles are kept for: binary operators, property
+    // gets and sets, and function declarations, in source order.
+    private static final class SiteNumbering implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final Map<Object, Integer> sites = new IdentityHashMap<>();
+
+        SiteNumbering(List<Stmt> statements) {
+            walk(statements);
+        }
+
+        private void walk(List<? extends Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void walk(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void number(Object node) {
+            sites.put(node, sites.size());
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            walk(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassDefStmt(Stmt.ClassDef stmt) {
+            walk(stmt.superclass);
+            walk(stmt.methods);
+            walk(stmt.staticMethods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            number(stmt);
+            walk(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfConditionStmt(Stmt.IfCondition stmt) {
+            walk(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmtStmt(Stmt.ReturnStmt stmt) {
+            walk(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            walk(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileLoopStmt(Stmt.WhileLoop stmt) {
+            walk(stmt.condition);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            number(expr);
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            walk(expr.callee);
+            for (Expr argument : expr.arguments) {
+                walk(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            number(expr);
+            walk(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            number(expr);
+            walk(expr.object);
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLoxSuperExpr(Expr.LoxSuper expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLoxThisExpr(Expr.LoxThis expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            walk(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            walk(expr.condition);
+            walk(expr.trueCondition);
+            walk(expr.falseCondition);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+}
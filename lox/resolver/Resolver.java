@@ -1,13 +1,15 @@
 package lox.resolver;
 
 import lox.Lox;
+import lox.ast.Capture;
 import lox.ast.Expr;
+import lox.ast.LazyBody;
 import lox.ast.Stmt;
-import lox.interpreter.Interpreter;
 import lox.scanner.Token;
 import lox.util.ClassType;
 import lox.util.FunctionType;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,19 +17,82 @@ import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // Slots and depths can only be worked out once the outermost local scope
+    // has ended and it is known which scopes end up holding anything, so
+    // they are written to the nodes then.
+    private final List<Runnable> placements = new ArrayList<>();
+
+    // Blocks have no environment of their own: their locals take slots in
+    // the enclosing one, after that scope's own. A local that a closure
+    // captures is boxed in an Upvalue when it is declared, so a block run
+    // again in a loop still gives each closure its own variable. Function
+    // and superclass scopes keep an environment unless nothing ends up in
+    // them; only a block at the top level needs one.
+    private enum Kind { BLOCK, FUNCTION, SUPERCLASS }
+
+    private static class Scope {
+        final Scope parent;
+        final Kind kind;
+        final Map<String, Local> locals = new HashMap<>();
+        final List<Scope> children = new ArrayList<>();
+
+        // For a function, the variables of enclosing code it captures.
+        final List<Upvalue> upvalues = new ArrayList<>();
+
+        // The scope whose environment holds these locals at runtime, and the
+        // slot the first of them takes there.
+        Scope home;
+        int base;
+        int size = 0;
+
+        Scope(Scope parent, Kind kind) {
+            this.parent = parent;
+            this.kind = kind;
+        }
+
+        boolean hasEnvironment() {
+            return home == this && size > 0;
+        }
+    }
+
+    // A local's index is its declaration order within its scope.
+    private static class Local {
+        final Scope scope;
+        final int index;
+        boolean defined = false;
+        boolean captured = false;
+
+        Local(Scope scope, int index) {
+            this.scope = scope;
+            this.index = index;
+        }
+
+        int slot() {
+            return scope.base + index;
+        }
+    }
+
+    // A captured variable: a local of the code that creates the closure, or
+    // else the given upvalue of the function that code belongs to.
+    private static class Upvalue {
+        final Local local;
+        final int enclosing;
+
+        Upvalue(Local local, int enclosing) {
+            this.local = local;
+            this.enclosing = enclosing;
+        }
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        Scope scope = beginScope(Kind.BLOCK);
         resolve((stmt.statements));
+        placements.add(() -> stmt.scoped = scope.hasEnvironment());
         endScope();
         return null;
     }
@@ -36,19 +101,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitClassDefStmt(Stmt.ClassDef stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) placements.add(() -> place(stmt, local));
 
         if (stmt.superclass != null) { // checks for superclass
             currentClass = ClassType.SUBCLASS;
-            beginScope();
-            scopes.peek().put("super", true);
-            resolve(stmt.superclass);
+            // Evaluated before the interpreter opens the superclass scope.
+            // Inheriting itself is reported below instead.
+            if (!stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+                resolve(stmt.superclass);
+            }
+            beginScope(Kind.SUPERCLASS);
+            defineSynthetic("super");
         }
 
-        beginScope();
-
-        scopes.peek().put("this", true); // defining "this"
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -57,14 +123,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         for (Stmt.Function staticMethod : stmt.staticMethods) {
             resolveFunction(staticMethod, FunctionType.FUNCTION);
         }
 
-        define(stmt.name);
-
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
             Lox.error(stmt.superclass.name, "A class can't inherit itself.");
         }
@@ -72,6 +134,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if (stmt.superclass != null) {
             endScope();
         }
+
+        define(stmt.name);
         currentClass = enclosingClass;
         return null;
     }
@@ -106,6 +170,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if (currentFunction == FunctionType.INITIALZER) {
             Lox.error(stmt.keyword, "Can't return a value from an initializer.");
         }
+
+        // A returned call is the last thing its function does, so the
+        // interpreter can run it without keeping this call's frame.
+        if (currentFunction != FunctionType.NONE && stmt.value instanceof Expr.Call) {
+            stmt.tailCall = true;
+        }
         return null;
     }
 
@@ -171,7 +241,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         } else if (currentClass == ClassType.CLASS) {
             Lox.error(expr.keyword, "Can't use 'super' in a class without superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+
+        // "super" is only ever read from inside a method, so it always comes
+        // through an upvalue. The receiver is read like any other "this".
+        Local local = lookUp("super");
+        if (local != null) expr.upvalue = upvalue(function(scopes.peek()), local);
+
+        expr.receiver = new Expr.LoxThis(expr.keyword);
+        if (currentClass != ClassType.NONE) resolve(expr.receiver);
         return null;
     }
 
@@ -182,7 +259,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use this outside a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+
+        Scope from = scopes.empty() ? null : scopes.peek();
+        Local local = lookUp("this");
+        if (local == null) { // In a static method, which has no receiver.
+            Lox.error(expr.keyword, "Can't use 'this' outside of a class instance.");
+            return null;
+        }
+
+        if (function(from) != function(local.scope)) {
+            expr.upvalue = upvalue(function(from), local);
+        } else {
+            placements.add(() -> {
+                expr.depth = depth(from, local.scope);
+                expr.slot = local.slot();
+                expr.boxed = local.captured;
+            });
+        }
         return null;
     }
 
@@ -202,7 +295,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) placements.add(() -> place(stmt, local));
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -212,31 +306,57 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.empty() && scopes.peek().get(expr.name) == Boolean.FALSE) {
+        if (!scopes.empty() && scopes.peek().locals.containsKey(expr.name.lexeme) && !scopes.peek().locals.get(expr.name.lexeme).defined) {
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        Scope from = scopes.empty() ? null : scopes.peek();
+        Local local = lookUp(expr.name.lexeme);
+        if (local == null) return null;
+
+        if (function(from) != function(local.scope)) {
+            expr.upvalue = upvalue(function(from), local);
+        } else {
+            placements.add(() -> {
+                expr.depth = depth(from, local.scope);
+                expr.slot = local.slot();
+                expr.boxed = local.captured;
+            });
+        }
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+
+        Scope from = scopes.empty() ? null : scopes.peek();
+        Local local = lookUp(expr.name.lexeme);
+        if (local == null) return null;
+
+        if (function(from) != function(local.scope)) {
+            expr.upvalue = upvalue(function(from), local);
+        } else {
+            placements.add(() -> {
+                expr.depth = depth(from, local.scope);
+                expr.slot = local.slot();
+                expr.boxed = local.captured;
+            });
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) placements.add(() -> place(stmt, local));
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
 
-    private void resolve(Stmt stmt) {
+    public void resolve(Stmt stmt) {
         stmt.accept(this);
     }
 
@@ -250,47 +370,196 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // The local a name refers to, or null for a global.
+    private Local lookUp(String name) {
         for (int i = scopes.size() - 1; i>= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
+            Local local = scopes.get(i).locals.get(name);
+            if (local != null) return local;
+        }
+        return null;
+    }
+
+    // The innermost function scope at or around a scope, or null at the top
+    // level.
+    private static Scope function(Scope scope) {
+        while (scope != null && scope.kind != Kind.FUNCTION) {
+            scope = scope.parent;
         }
+        return scope;
     }
 
-    private void resolveFunction(Stmt.Function function, FunctionType type) { // Just like block
+    // The index of a local among a function's upvalues, adding it to this
+    // function and to every function between it and the local's own.
+    private int upvalue(Scope function, Local local) {
+        for (int i = 0; i < function.upvalues.size(); i++) {
+            if (function.upvalues.get(i).local == local) return i;
+        }
+
+        Scope enclosing = function(function.parent);
+        if (enclosing == function(local.scope)) {
+            local.captured = true;
+            function.upvalues.add(new Upvalue(local, -1));
+        } else {
+            function.upvalues.add(new Upvalue(local, upvalue(enclosing, local)));
+        }
+        return function.upvalues.size() - 1;
+    }
+
+    // Environments between a use and the scope of the local it reads: one
+    // for each scope on the way that has its own.
+    private static int depth(Scope from, Scope to) {
+        int depth = 0;
+        for (Scope scope = from; scope != to; scope = scope.parent) {
+            if (scope.hasEnvironment()) depth++;
+        }
+        return depth;
+    }
+
+    private void resolveFunction(Stmt.Function function, FunctionType type) {
+        if (function.body instanceof LazyBody) {
+            deferFunction(function, (LazyBody) function.body, type);
+        } else {
+            resolveFunction(function, function.body, type);
+        }
+    }
+
+    private void resolveFunction(Stmt.Function function, List<Stmt> body, FunctionType type) { // Just like block
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
-        beginScope();
+        Scope scope = beginScope(Kind.FUNCTION);
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALZER) {
+            defineSynthetic("this"); // The receiver takes slot zero of the method's own frame.
+        }
         for(Token param : function.params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+        resolve(body);
+        placements.add(() -> place(function, scope));
         endScope();
         currentFunction = enclosingFunction;
     }
 
-    private void declare(Token name) {
-        if (scopes.empty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+    // A body not yet parsed. The parser only skips bodies whose sole possible
+    // capture is "super", so that is all a closure needs until it is read.
+    private void deferFunction(Stmt.Function function, LazyBody body, FunctionType type) {
+        body.type = type;
+        body.classType = currentClass;
+        Scope scope = beginScope(Kind.FUNCTION);
+        Local local = body.mentionsSuper() ? lookUp("super") : null;
+        if (local != null) upvalue(scope, local);
+        placements.add(() -> place(function, scope));
+        endScope();
+    }
+
+    // Resolves a skipped body in a copy of the scopes it was declared in,
+    // placing the function again now its frame is known. "super", if there,
+    // is the function's first upvalue here as it was when it was deferred.
+    public void resolveBody(LazyBody body, List<Stmt> statements) {
+        currentClass = body.classType;
+        if (currentClass == ClassType.SUBCLASS) {
+            beginScope(Kind.SUPERCLASS);
+            defineSynthetic("super");
+        }
+        resolveFunction(body.function, statements, body.type);
+        if (currentClass == ClassType.SUBCLASS) {
+            endScope();
+        }
+    }
+
+    private Local declare(Token name) {
+        if (scopes.empty()) return null;
+        Scope scope = scopes.peek();
+        if (scope.locals.containsKey(name.lexeme)) {
             Lox.error(name, "A variable with the same name already exists in this scope.");
+            return null;
         }
-        scope.put(name.lexeme, false);
+        Local local = new Local(scope, scope.locals.size());
+        scope.locals.put(name.lexeme, local);
+        return local;
     }
 
     private void define(Token name) {
         if (scopes.empty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).defined = true;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    private void defineSynthetic(String name) {
+        Scope scope = scopes.peek();
+        Local local = new Local(scope, scope.locals.size());
+        local.defined = true;
+        scope.locals.put(name, local);
+    }
+
+    private Scope beginScope(Kind kind) {
+        Scope parent = scopes.empty() ? null : scopes.peek();
+        Scope scope = new Scope(parent, kind);
+        if (parent != null) parent.children.add(scope);
+        scopes.push(scope);
+        return scope;
     }
 
     private void endScope() {
-        scopes.pop();
+        Scope scope = scopes.pop();
+        if (scope.parent != null) return;
+
+        place(scope);
+        for (Runnable placement : placements) {
+            placement.run();
+        }
+        placements.clear();
+    }
+
+    private void place(Stmt.Var stmt, Local local) {
+        stmt.slot = local.slot();
+        stmt.boxed = local.captured;
+    }
+
+    private void place(Stmt.Function stmt, Local local) {
+        stmt.slot = local.slot();
+        stmt.boxed = local.captured;
+    }
+
+    private void place(Stmt.ClassDef stmt, Local local) {
+        stmt.slot = local.slot();
+        stmt.boxed = local.captured;
+    }
+
+    // What a call and a closure of this function need: whether it has a
+    // frame, which of the receiver and parameters (the locals LoxFunction
+    // defines itself) to box, and where to find each upvalue when a closure
+    // is made. Closures are made in the scope around the function.
+    private void place(Stmt.Function function, Scope scope) {
+        function.scoped = scope.hasEnvironment();
+
+        int defined = function.params.size() + (scope.locals.containsKey("this") ? 1 : 0);
+        List<Integer> boxed = new ArrayList<>();
+        for (Local local : scope.locals.values()) {
+            if (local.index < defined && local.captured) boxed.add(local.slot());
+        }
+        function.boxedParams = boxed.stream().mapToInt(Integer::intValue).toArray();
+
+        function.captures = new Capture[scope.upvalues.size()];
+        for (int i = 0; i < function.captures.length; i++) {
+            Upvalue upvalue = scope.upvalues.get(i);
+            if (upvalue.enclosing < 0) {
+                function.captures[i] = new Capture(true, depth(scope.parent, upvalue.local.scope), upvalue.local.slot());
+            } else {
+                function.captures[i] = new Capture(false, 0, upvalue.enclosing);
+            }
+        }
+    }
+
+    // Outer scopes are placed first, so a block's slots come after every
+    // local its home declares itself.
+    private void place(Scope scope) {
+        boolean folds = scope.kind == Kind.BLOCK && scope.parent != null;
+        scope.home = folds ? scope.parent.home : scope;
+        scope.base = scope.home.size;
+        scope.home.size += scope.locals.size();
+
+        for (Scope child : scope.children) {
+            place(child);
+        }
     }
 }
@@ -0,0 +1,32 @@
+package lox.runtime;
+
+import lox.interpreter.Interpreter;
+import lox.util.LoxCallable;
+
+import java.util.List;
+
+// A method taken off an instance as a first-class value.
+public class BoundMethod implements LoxCallable {
+    public final LoxFunction method;
+    public final Object receiver;
+
+    BoundMethod(LoxFunction method, Object receiver) {
+        this.method = method;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public int arity() {
+        return method.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return method.callWithReceiver(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -1,37 +1,84 @@
 package lox.runtime;
 
-import lox.util.RuntimeError;
+import lox.ast.Expr;
 import lox.scanner.Token;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment is looked up by name, and it hands out
+    // one cell per name for sites to cache. Local frames are plain arrays
+    // addressed by the slot the resolver assigned to each local.
+    private final Map<String, GlobalCell> values;
+    private Object[] slots;
+    private int count = 0;
     public final Environment enclosing;
 
     public Environment() {
         enclosing = null;
+        values = new HashMap<>();
     }
 
     public Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[4];
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) return values.get(name.lexeme);
+        return cell(name.lexeme).get(name);
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    // The cell for a global, created undefined if the name is not yet known.
+    public GlobalCell cell(String name) {
+        GlobalCell cell = values.get(name);
+        if (cell == null) {
+            cell = new GlobalCell();
+            values.put(name, cell);
+        }
+        return cell;
+    }
+
+    // The cell a global variable site keeps, looked up the first time it runs.
+    public GlobalCell cell(Expr.Variable expr) {
+        if (expr.global == null) expr.global = cell(expr.name.lexeme);
+        return (GlobalCell) expr.global;
+    }
 
-        throw new RuntimeError(name, "Undefined variable: " + name.lexeme);
+    public GlobalCell cell(Expr.Assign expr) {
+        if (expr.global == null) expr.global = cell(expr.name.lexeme);
+        return (GlobalCell) expr.global;
     }
 
-    public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    public Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
+    // The receiver, parameters and super are defined first in a fresh
+    // environment, in the order the resolver handed out their slots, so
+    // appending lands every value at its resolved index.
     public void define(String name, Object value) {
-        values.put(name, value);
+        if (values != null) {
+            cell(name).define(value);
+            return;
+        }
+
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
+        }
+        slots[count++] = value;
+    }
+
+    // Declarations write straight to their resolved slot. Locals of blocks
+    // folded into this environment come after its own, so the array may need
+    // to grow to reach them.
+    public void defineAt(int slot, Object value) {
+        if (slot >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slot + 1, slots.length * 2));
+        }
+        slots[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -43,20 +90,10 @@ public class Environment {
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name, "Undefined variable: " + name.lexeme);
+        cell(name.lexeme).assign(name, value);
     }
 
-    public void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    public void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 }
@@ -0,0 +1,29 @@
+package lox.runtime;
+
+import lox.scanner.Token;
+import lox.util.RuntimeError;
+
+// One global variable. A name gets a single cell for the life of its
+// environment, so a site can keep the cell after its first lookup: defining
+// the name again writes the same cell and nothing cached goes stale.
+public final class GlobalCell {
+    private Object value = null;
+    private boolean defined = false;
+
+    public Object get(Token name) {
+        if (defined) return value;
+        throw new RuntimeError(name, "Undefined variable: " + name.lexeme);
+    }
+
+    public void assign(Token name, Object value) {
+        if (!defined) {
+            throw new RuntimeError(name, "Undefined variable: " + name.lexeme);
+        }
+        this.value = value;
+    }
+
+    void define(Object value) {
+        this.value = value;
+        defined = true;
+    }
+}
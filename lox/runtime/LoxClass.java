@@ -12,6 +12,8 @@ public class LoxClass implements LoxCallable {
     private Map<String, LoxFunction> methods;
     private Map<String, LoxFunction> staticMethods;
     final LoxClass superclass;
+    final Shape rootShape = new Shape(this);
+    int instanceSize = 0; // Most fields any instance has grown to so far.
 
     public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods, Map<String, LoxFunction> staticMethods) {
         this.name = name;
@@ -48,7 +50,7 @@ public class LoxClass implements LoxCallable {
         LoxInstance instance = new LoxInstance(this);
         LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.callWithReceiver(interpreter, instance, arguments);
         }
         return instance;
     }
@@ -1,21 +1,36 @@
 package lox.runtime;
 
 import lox.interpreter.Interpreter;
-import lox.interpreter.Return;
+import lox.ast.LazyBody;
 import lox.ast.Stmt;
+import lox.jit.Jit;
+import lox.jit.JitCode;
+import lox.scanner.Token;
 import lox.util.LoxCallable;
 
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
     private final boolean isInitializer;
 
-    public LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    // Only the variables the body reads from enclosing code, not the whole
+    // environment it was declared in.
+    public final Upvalue[] upvalues;
+
+    // Tiering state: the function is tree-walked until calls plus loop
+    // iterations reach its threshold, then runs as compiled code.
+    private final int threshold;
+    private int invocations = 0;
+    private int backEdges = 0;
+    private JitCode compiled = null;
+    private boolean compileFailed = false;
+
+    public LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer) {
         this.isInitializer = isInitializer;
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.threshold = Jit.threshold(declaration);
     }
 
     @Override
@@ -25,27 +40,78 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List <Object> arguments) {
-        Environment environment =  new Environment(interpreter.globals);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        return invoke(interpreter, null, arguments);
+    }
+
+    // Methods keep their receiver in slot zero of their own frame, so calling
+    // one needs no bound copy of the function.
+    public Object callWithReceiver(Interpreter interpreter, Object receiver, List<Object> arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // Runs as a trampoline: when the body ends in a tail call, the callee
+    // takes over this loop instead of growing the Java stack.
+    private Object invoke(Interpreter interpreter, Object receiver, List<Object> arguments) {
+        LoxFunction function = this;
+
+        while (true) {
+            Object value = function.run(interpreter, receiver, arguments);
+
+            TailCall tailCall = interpreter.takeTailCall();
+            if (tailCall == null) {
+                if (function.isInitializer) return receiver;
+                return value;
+            }
+
+            function = tailCall.function;
+            receiver = tailCall.receiver;
+            arguments = tailCall.arguments;
+        }
+    }
+
+    // Runs the body once, as compiled code once the function has got hot.
+    private Object run(Interpreter interpreter, Object receiver, List<Object> arguments) {
+        // A skipped body is read now, settling the frame placed below.
+        if (declaration.body instanceof LazyBody) ((LazyBody) declaration.body).compile();
+
+        if (compiled == null && !compileFailed && ++invocations + backEdges >= threshold) {
+            compiled = Jit.compile(declaration, receiver != null);
+            compileFailed = compiled == null;
         }
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+        if (compiled != null) {
+            return compiled.run(interpreter, upvalues, receiver, arguments);
         }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
-    }
+        // Nothing to hold: no receiver, parameters or locals. The body never
+        // touches the environment it runs in.
+        if (!declaration.scoped) {
+            return interpreter.executeBody(this, declaration.body, interpreter.globals);
+        }
 
-    public LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
+        // A frame reaches no further than the function's own locals;
+        // everything else comes through an upvalue or is a global.
+        Environment environment = new Environment(interpreter.globals);
+        if (receiver != null) environment.define("this", receiver);
 
-        environment.define("this", instance);
+        List<Token> params = declaration.params;
+        for (int i = 0; i < params.size(); i++) {
+            environment.define(params.get(i).lexeme, arguments.get(i));
+        }
+        for (int slot : declaration.boxedParams) {
+            environment.defineAt(slot, new Upvalue(environment.getAt(0, slot)));
+        }
+        return interpreter.executeBody(this, declaration.body, environment);
+    }
+
+    // Called by the interpreter on every loop iteration it runs for this
+    // function, so long-running loops count towards compiling it too.
+    public void countBackEdge() {
+        backEdges++;
+    }
 
-        return new LoxFunction(declaration, environment, isInitializer);
+    // Only needed when a method is used as a value rather than called.
+    public LoxCallable bind(Object instance) {
+        return new BoundMethod(this, instance);
     }
 
     @Override
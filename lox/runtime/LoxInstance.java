@@ -3,17 +3,20 @@ package lox.runtime;
 import lox.util.RuntimeError;
 import lox.scanner.Token;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
 
     private LoxClass loxClass;
-    private final Map<String, Object> fields = new HashMap<>();
+    // Field values are laid out by the shape instead of a per-instance map.
+    private Shape shape;
+    private Object[] values;
 
 
     LoxInstance(LoxClass loxClass) {
         this.loxClass = loxClass;
+        this.shape = loxClass.rootShape;
+        this.values = new Object[loxClass.instanceSize];
     }
 
     @Override
@@ -21,17 +24,40 @@ public class LoxInstance {
         return loxClass.name + " instance";
     }
 
-    public Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
-        LoxFunction method = loxClass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+    public Object get(Token name, PropertyCache cache) {
+        PropertyCache.Entry entry = lookup(name, cache);
+
+        if (entry.slot >= 0) return values[entry.slot];
+        if (entry.method != null) return entry.method.bind(this);
 
         throw new RuntimeError(name, "Undefined property " + name.lexeme +  ".");
     }
 
-    public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    // The method a call through this name should invoke on this instance, or
+    // null when the name is a field (or nothing), which callers read with get.
+    public LoxFunction findMethod(Token name, PropertyCache cache) {
+        PropertyCache.Entry entry = lookup(name, cache);
+        return entry.slot >= 0 ? null : entry.method;
+    }
+
+    private PropertyCache.Entry lookup(Token name, PropertyCache cache) {
+        PropertyCache.Entry entry = cache.lookup(shape);
+        if (entry == null) entry = cache.miss(shape, name.lexeme);
+        return entry;
+    }
+
+    public void set(Token name, Object value, PropertyCache cache) {
+        PropertyCache.Entry entry = cache.lookup(shape);
+        if (entry == null) entry = cache.miss(shape, name.lexeme);
+
+        if (entry.transition != shape) {
+            shape = entry.transition;
+            if (values.length < shape.size()) {
+                values = Arrays.copyOf(values, shape.size());
+                // Later instances of the class start out with room for this many fields.
+                loxClass.instanceSize = Math.max(loxClass.instanceSize, shape.size());
+            }
+        }
+        values[entry.slot] = value;
     }
 }
@@ -0,0 +1,139 @@
+package lox.runtime;
+
+import lox.ast.Expr;
+import lox.profile.Profile;
+
+// Inline cache for one property access site, keyed by the receiver's shape.
+// A shape fixes both the field layout and the class, so what a name
+// resolved to for one shape holds for every instance that has it: a field
+// slot, a method, or (at set sites) the shape the store transitions to.
+// Up to four shapes are cached; a site that sees more is megamorphic and
+// resolves each access from scratch.
+//
+// With a profile in use, the shapes a site caches are recorded against it.
+// The first time the site misses in a later run, the shapes recorded for
+// the receiver's class are rebuilt and cached along with its own, so the
+// others hit from their first access.
+public final class PropertyCache {
+    private static final int POLYMORPHIC_LIMIT = 4;
+
+    private static Profile profile = null;
+
+    public static void useProfile(Profile profile) {
+        PropertyCache.profile = profile;
+    }
+
+    static final class Entry {
+        final Shape shape;
+        final int slot;           // Field slot, or -1 when the name is not a field.
+        final LoxFunction method; // Get sites: the method found instead of a field.
+        final Shape transition;   // Set sites: the receiver's shape after the store.
+
+        Entry(Shape shape, int slot, LoxFunction method, Shape transition) {
+            this.shape = shape;
+            this.slot = slot;
+            this.method = method;
+            this.transition = transition;
+        }
+    }
+
+    private final Object site;
+    private final boolean sets;
+    private Entry[] entries;
+    private int size = 0;
+    private boolean seeded = false;
+
+    private PropertyCache(Object site, boolean sets) {
+        this.site = site;
+        this.sets = sets;
+    }
+
+    // The cache a site keeps, made the first time it runs.
+    public static PropertyCache of(Expr.Get expr) {
+        if (expr.cache == null) expr.cache = new PropertyCache(expr, false);
+        return (PropertyCache) expr.cache;
+    }
+
+    public static PropertyCache of(Expr.Set expr) {
+        if (expr.cache == null) expr.cache = new PropertyCache(expr, true);
+        return (PropertyCache) expr.cache;
+    }
+
+    Entry lookup(Shape shape) {
+        for (int i = 0; i < size; i++) {
+            if (entries[i].shape == shape) return entries[i];
+        }
+        return null;
+    }
+
+    // Resolves the name for a shape the cache has no entry for, and caches
+    // what it finds.
+    Entry miss(Shape shape, String name) {
+        if (!seeded) {
+            seeded = true;
+            seed(shape.loxClass, name);
+            Entry entry = lookup(shape);
+            if (entry != null) return entry;
+        }
+
+        // A megamorphic site records nothing new, so has nothing to save.
+        int cached = size;
+        Entry entry = record(resolve(shape, name));
+        if (profile != null && size > cached) profile.put(site, describe());
+        return entry;
+    }
+
+    private Entry resolve(Shape shape, String name) {
+        int slot = shape.indexOf(name);
+        if (!sets) {
+            LoxFunction method = slot < 0 ? shape.loxClass.findMethod(name) : null;
+            return new Entry(shape, slot, method, null);
+        }
+
+        Shape next = shape;
+        if (slot < 0) {
+            next = shape.withField(name);
+            slot = next.size() - 1;
+        }
+        return new Entry(shape, slot, null, next);
+    }
+
+    private Entry record(Entry entry) {
+        if (entries == null) {
+            entries = new Entry[POLYMORPHIC_LIMIT];
+        }
+        if (size < POLYMORPHIC_LIMIT) {
+            entries[size++] = entry;
+        }
+        return entry;
+    }
+
+    // Shapes are recorded as the class name and the fields in the order
+    // they were added, e.g. "Point:x,y", separated by spaces.
+    private String describe() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) description.append(' ');
+            description.append(entries[i].shape.describe());
+        }
+        return description.toString();
+    }
+
+    private void seed(LoxClass loxClass, String name) {
+        String recorded = profile == null ? null : profile.get(site);
+        if (recorded == null) return;
+
+        for (String description : recorded.split(" ")) {
+            int colon = description.indexOf(':');
+            if (colon < 0 || !description.substring(0, colon).equals(loxClass.name)) continue;
+
+            Shape shape = loxClass.rootShape;
+            if (colon + 1 < description.length()) {
+                for (String field : description.substring(colon + 1).split(",")) {
+                    shape = shape.withField(field);
+                }
+            }
+            if (lookup(shape) == null) record(resolve(shape, name));
+        }
+    }
+}
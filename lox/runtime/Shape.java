@@ -0,0 +1,73 @@
+package lox.runtime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Field layout shared by every instance of a class that had the same fields
+// added in the same order: field i of such an instance lives in values[i].
+// Adding a field moves an instance along a transition to the next shape,
+// and transitions are recorded so instances built alike share shapes.
+// Field names are compared by equals. Names from one scan or one cache
+// entry are the same String, so the identity check equals starts with
+// usually settles it, but a name from anywhere else still finds its field.
+final class Shape {
+    private static final int INDEX_THRESHOLD = 8;
+
+    final LoxClass loxClass;
+    private final String[] keys;
+    private Map<String, Integer> index; // Built for wide shapes only.
+    private Map<String, Shape> transitions;
+
+    Shape(LoxClass loxClass) {
+        this(loxClass, new String[0]);
+    }
+
+    private Shape(LoxClass loxClass, String[] keys) {
+        this.loxClass = loxClass;
+        this.keys = keys;
+
+        if (keys.length > INDEX_THRESHOLD) {
+            index = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                index.put(keys[i], i);
+            }
+        }
+    }
+
+    String describe() {
+        return loxClass.name + ":" + String.join(",", keys);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    int indexOf(String name) {
+        if (index != null) {
+            Integer slot = index.get(name);
+            return slot == null ? -1 : slot;
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    Shape withField(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+
+        Shape next = transitions.get(name);
+        if (next == null) {
+            String[] nextKeys = new String[keys.length + 1];
+            System.arraycopy(keys, 0, nextKeys, 0, keys.length);
+            nextKeys[keys.length] = name;
+
+            next = new Shape(loxClass, nextKeys);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,17 @@
+package lox.runtime;
+
+import java.util.List;
+
+// A call in tail position, handed back to the running LoxFunction so it can
+// reuse its own Java frame instead of nesting a new one.
+public final class TailCall {
+    final LoxFunction function;
+    final Object receiver;
+    final List<Object> arguments;
+
+    public TailCall(LoxFunction function, Object receiver, List<Object> arguments) {
+        this.function = function;
+        this.receiver = receiver;
+        this.arguments = arguments;
+    }
+}
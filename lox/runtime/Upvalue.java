@@ -0,0 +1,12 @@
+package lox.runtime;
+
+// A local some closure captures. The declaring frame holds the box in the
+// local's slot and every closure that captures it holds the same box, so
+// they all share one variable however long each of them lives.
+public final class Upvalue {
+    public Object value;
+
+    public Upvalue(Object value) {
+        this.value = value;
+    }
+}
@@ -3,52 +3,98 @@ package lox.scanner;
 import lox.Lox;
 import lox.util.TokenType;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static lox.util.TokenType.*;
 
+// Reads source through a window of characters and hands out one token at a
+// time, so a file is never held whole: the window only needs to reach back
+// to the start of the token being scanned. start and current index the
+// window and shift whenever it is refilled.
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<Token>();
+    private static final int WINDOW = 8192;
+
+    private final Reader reader;
+    private char[] window = new char[WINDOW];
+    private int limit = 0; // Characters read into the window so far.
+    private boolean exhausted = false;
+
+    private final Symbols symbols = new Symbols();
+    private Token next = null;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords = new HashMap<>();
+    // The lexeme of every token type that is always spelled the same way,
+    // indexed by ordinal. These tokens skip the symbol table and share one
+    // Java string constant.
+    private static final String[] lexemes = new String[TokenType.values().length];
 
     static {
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
+        fixed(LEFT_PAREN, "(");
+        fixed(RIGHT_PAREN, ")");
+        fixed(LEFT_BRACE, "{");
+        fixed(RIGHT_BRACE, "}");
+        fixed(COMMA, ",");
+        fixed(DOT, ".");
+        fixed(MINUS, "-");
+        fixed(PLUS, "+");
+        fixed(SEMICOLON, ";");
+        fixed(SLASH, "/");
+        fixed(STAR, "*");
+        fixed(QUESTION_MARK, "?");
+        fixed(COLON, ":");
+        fixed(BANG, "!");
+        fixed(BANG_EQUAL, "!=");
+        fixed(EQUAL, "=");
+        fixed(EQUAL_EQUAL, "==");
+        fixed(GREATER, ">");
+        fixed(GREATER_EQUAL, ">=");
+        fixed(LESS, "<");
+        fixed(LESS_EQUAL, "<=");
+        fixed(AND, "and");
+        fixed(CLASS, "class");
+        fixed(ELSE, "else");
+        fixed(FALSE, "false");
+        fixed(FOR, "for");
+        fixed(FUN, "fun");
+        fixed(IF, "if");
+        fixed(NIL, "nil");
+        fixed(OR, "or");
+        fixed(PRINT, "print");
+        fixed(RETURN, "return");
+        fixed(SUPER, "super");
+        fixed(THIS, "this");
+        fixed(TRUE, "true");
+        fixed(VAR, "var");
+        fixed(WHILE, "while");
+    }
+
+    private static void fixed(TokenType type, String lexeme) {
+        lexemes[type.ordinal()] = lexeme;
     }
 
     public Scanner(String source) {
-        this.source = source;
+        this(new StringReader(source));
     }
 
-    public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    public Scanner(Reader reader) {
+        this.reader = reader;
+    }
+
+    // The next token, or EOF once the source is used up.
+    public Token nextToken() {
+        next = null;
+        while (next == null) {
+            if (isAtEnd()) return new Token(EOF, "", null, line);
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return next;
     }
 
     private void scanToken() {
@@ -98,7 +144,42 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(0);
+    }
+
+    // Reads until the window holds the character this far past current,
+    // unless the source ends first. Filling may shift current.
+    private boolean available(int ahead) {
+        while (current + ahead >= limit) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    private boolean fill() {
+        if (exhausted) return false;
+
+        if (start > 0) {
+            System.arraycopy(window, start, window, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+        if (limit == window.length) {
+            window = Arrays.copyOf(window, window.length * 2);
+        }
+
+        try {
+            int read = reader.read(window, limit, window.length - limit);
+            if (read < 0) {
+                exhausted = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private boolean isDigit(char c) {
@@ -114,7 +195,7 @@ public class Scanner {
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return window[current++];
     }
 
     private void addToken(TokenType tokenType) {
@@ -122,13 +203,14 @@ public class Scanner {
     }
 
     private void addToken(TokenType tokenType, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(tokenType, text, literal, line));
+        String text = lexemes[tokenType.ordinal()];
+        if (text == null) text = symbols.intern(window, start, current);
+        next = new Token(tokenType, text, literal, line);
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (window[current] != expected) return false;
 
         current++;
         return true;
@@ -136,12 +218,12 @@ public class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return window[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!available(1)) return '\0';
+        return window[current + 1];
     }
 
     private void string() {
@@ -159,7 +241,7 @@ public class Scanner {
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = symbols.intern(window, start + 1, current - 1);
         addToken(STRING, value);
 
     }
@@ -172,14 +254,62 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        // Number lexemes are rarely repeated, so they skip the symbol table.
+        String text = text(start, current);
+        next = new Token(NUMBER, text, Double.parseDouble(text), line);
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(identifierType());
+    }
+
+    // Keywords are recognized from the window by their leading characters,
+    // so identifiers are only hashed once, by the symbol table.
+    private TokenType identifierType() {
+        switch (window[start]) {
+            case 'a': return keyword(AND);
+            case 'c': return keyword(CLASS);
+            case 'e': return keyword(ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (window[start + 1]) {
+                        case 'a': return keyword(FALSE);
+                        case 'o': return keyword(FOR);
+                        case 'u': return keyword(FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(IF);
+            case 'n': return keyword(NIL);
+            case 'o': return keyword(OR);
+            case 'p': return keyword(PRINT);
+            case 'r': return keyword(RETURN);
+            case 's': return keyword(SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (window[start + 1]) {
+                        case 'h': return keyword(THIS);
+                        case 'r': return keyword(TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(VAR);
+            case 'w': return keyword(WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType keyword(TokenType type) {
+        String keyword = lexemes[type.ordinal()];
+        if (current - start != keyword.length()) return IDENTIFIER;
+        for (int i = 1; i < keyword.length(); i++) {
+            if (window[start + i] != keyword.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
+
+    private String text(int from, int to) {
+        return new String(window, from, to - from);
     }
 }
@@ -0,0 +1,59 @@
+package lox.scanner;
+
+// Canonical lexemes for one scan. Each lexeme is looked up by its place in
+// the scanner's window, hashed the way String.hashCode does, so a repeated
+// name costs no new String and every occurrence of it in the source is the
+// same object. The table goes when the scan does; nothing is added to the
+// JVM's string pool, which would keep every name and string literal of
+// every script scanned for as long as the process runs.
+final class Symbols {
+    private String[] table = new String[256];
+    private int count = 0;
+
+    String intern(char[] chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+
+        int length = end - start;
+        int mask = table.length - 1;
+        int index = spread(hash) & mask;
+        for (String symbol = table[index]; symbol != null; symbol = table[index]) {
+            if (symbol.hashCode() == hash && matches(symbol, chars, start, length)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+
+        String symbol = new String(chars, start, length);
+        table[index] = symbol;
+        if (++count * 2 > table.length) grow();
+        return symbol;
+    }
+
+    private static boolean matches(String symbol, char[] chars, int start, int length) {
+        if (symbol.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (symbol.charAt(i) != chars[start + i]) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+
+        for (String symbol : old) {
+            if (symbol == null) continue;
+            int index = spread(symbol.hashCode()) & mask;
+            while (table[index] != null) index = (index + 1) & mask;
+            table[index] = symbol;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -4,11 +4,11 @@ import lox.util.TokenType;
 
 public class Token {
     public final TokenType type;
-    public final String lexeme;
+    public final String lexeme; // Equal lexemes from one scan are the same String.
     public final Object literal;
     public final int line;
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    public Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
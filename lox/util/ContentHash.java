@@ -0,0 +1,56 @@
+package lox.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// The SHA-256 of a file as stored and the charset it is decoded with, in
+// hex. What the profile and the script cache key their entries by: the same
+// bytes read as another charset can be another program.
+public final class ContentHash {
+    private ContentHash() {}
+
+    // Read a chunk at a time, so large scripts are never held in memory for it.
+    public static String of(Path file, Charset charset) {
+        try (DigestInputStream in = digesting(Files.newInputStream(file), charset)) {
+            return of(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // A stream that hashes the bytes read through it, so what is made from a
+    // file can be keyed by exactly the bytes it was made from. The charset's
+    // name is hashed first, ended by a zero byte no name contains.
+    public static DigestInputStream digesting(InputStream in, Charset charset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return new DigestInputStream(in, digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The hash of everything read through in, reading whatever is left first.
+    public static String of(DigestInputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) >= 0) {
+            // Only hashed.
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : in.getMessageDigest().digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
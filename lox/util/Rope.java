@@ -0,0 +1,84 @@
+package lox.util;
+
+import java.util.ArrayDeque;
+
+// A string built by +. Concatenating links the two parts instead of copying
+// them, so building a long string piece by piece takes linear time. The
+// characters are copied once, when the text is first needed by print or ==.
+//
+// Lox strings are therefore either a java String or a Rope; isString tells
+// them apart from other values, and equals treats both alike.
+public final class Rope {
+
+    // Shorter results are copied right away, which is cheaper than a node.
+    private static final int MIN_LENGTH = 64;
+
+    // Each part is a String or a Rope. Both are dropped once flattened.
+    private Object left;
+    private Object right;
+    private final int length;
+    private String text = null;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    public static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // left is a string; right may be any value and reads as its toString().
+    public static Object concat(Object left, Object right) {
+        if (!isString(right)) right = right.toString();
+
+        int length = length(left) + length(right);
+        if (length < MIN_LENGTH) return left.toString() + right.toString();
+        return new Rope(left, right, length);
+    }
+
+    private static int length(Object string) {
+        if (string instanceof Rope) return ((Rope) string).length;
+        return ((String) string).length();
+    }
+
+    // Walks the parts with an explicit stack: a string grown in a loop is a
+    // rope as deep as the loop ran.
+    @Override
+    public String toString() {
+        if (text != null) return text;
+
+        StringBuilder builder = new StringBuilder(length);
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+
+        while (!pending.isEmpty()) {
+            Object part = pending.pop();
+            if (part instanceof Rope && ((Rope) part).text == null) {
+                pending.push(((Rope) part).right);
+                pending.push(((Rope) part).left);
+            } else {
+                builder.append(part.toString());
+            }
+        }
+
+        text = builder.toString();
+        left = null;
+        right = null;
+        return text;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!isString(other)) return false;
+        if (length(other) != length) return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
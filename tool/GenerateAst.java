@@ -12,21 +12,27 @@ public class GenerateAst {
              System.exit(64);
          }
          String outputDir = args[0];
-         defineAst(outputDir, "Expr", Arrays.asList("Assign : Token name, Expr value", "Binary : Expr left, Token operator, Expr right", "Call : Expr callee, Token paren, List<Expr> arguments", "Get : Expr object, Token name", "Set : Expr object, Token name, Expr value", "LoxSuper : Token keyword, Token method", "LoxThis : Token keyword", "Grouping : Expr expression", "Literal : Object value", "Logical : Expr left, Token operator, Expr right", "Unary : Token operator, Expr right", "Ternary : Expr condition, Expr trueCondition, Expr falseCondition", "Variable : Token name"));
+         // Fields after " ; " are per-node runtime state filled in after parsing, not constructor arguments.
+         // What belongs to the runtime is kept as a bare Object, for the AST not to depend on it.
+         defineAst(outputDir, "Expr", Arrays.asList("lox.scanner.Token"), Arrays.asList("Assign : Token name, Expr value ; int depth = -1, int slot, boolean boxed, int upvalue = -1, Object global", "Binary : Expr left, Token operator, Expr right ; boolean numeric", "Call : Expr callee, Token paren, List<Expr> arguments", "Get : Expr object, Token name ; Object cache", "Set : Expr object, Token name, Expr value ; Object cache", "LoxSuper : Token keyword, Token method ; int upvalue = -1, LoxThis receiver", "LoxThis : Token keyword ; int depth = -1, int slot, boolean boxed, int upvalue = -1", "Grouping : Expr expression", "Literal : Object value", "Logical : Expr left, Token operator, Expr right", "Unary : Token operator, Expr right", "Ternary : Expr condition, Expr trueCondition, Expr falseCondition", "Variable : Token name ; int depth = -1, int slot, boolean boxed, int upvalue = -1, Object global"));
 
-         defineAst(outputDir, "Stmt", Arrays.asList("Block : List<Stmt> statements", "ClassDef : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods", "Expression : Expr expression", "Function : Token name, List<Token> params, List<Stmt> body", "IfCondition : Expr condition, Stmt thenBranch," + " Stmt elseBranch", "Print : Expr expression","ReturnStmt : Token keyword, Expr value", "Var : Token name, Expr initializer", "WhileLoop : Expr condition, Stmt body"));
+         defineAst(outputDir, "Stmt", Arrays.asList("lox.scanner.Token"), Arrays.asList("Block : List<Stmt> statements ; boolean scoped", "ClassDef : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods ; int slot = -1, boolean boxed", "Expression : Expr expression", "Function : Token name, List<Token> params, List<Stmt> body ; int slot = -1, boolean boxed, boolean scoped, Capture[] captures, int[] boxedParams", "IfCondition : Expr condition, Stmt thenBranch," + " Stmt elseBranch", "Print : Expr expression","ReturnStmt : Token keyword, Expr value ; boolean tailCall", "Var : Token name, Expr initializer ; int slot = -1, boolean boxed", "WhileLoop : Expr condition, Stmt body"));
     }
 
 
-    private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+    private static void defineAst(String outputDir, String baseName, List<String> imports, List<String> types) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
 
         PrintWriter writer = new PrintWriter(path, "UTF-8");
-        writer.println("package lox;");
+        writer.println("package lox.ast;");
+        writer.println();
+        for (String imported : imports) {
+            writer.println("import " + imported + ";");
+        }
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        writer.println("public abstract class " + baseName + " {");
 
         writer.println();
 
@@ -39,14 +45,14 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
 
-            String fields = type.split(":")[1].trim();
+            String[] fields = type.split(":")[1].split(" ; ");
 
-            defineType(writer, baseName, className, fields);
+            defineType(writer, baseName, className, fields[0].trim(), fields.length > 1 ? fields[1].trim() : null);
         }
 
         writer.println();
 
-        writer.println("    abstract <R> R accept(Visitor<R> visitor);");
+        writer.println("    public abstract <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
 
@@ -55,7 +61,7 @@ public class GenerateAst {
     }
 
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-        writer.println("    interface Visitor<R> {");
+        writer.println("    public interface Visitor<R> {");
 
         for (String type : types) {
             String typeName = type.split(":")[0].trim();
@@ -66,17 +72,23 @@ public class GenerateAst {
         writer.println("}");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String stateList) {
         String[] fields = fieldList.split(", ");
 
-        writer.println("    static class " + className + " extends " + baseName + " {");
+        writer.println("    public static class " + className + " extends " + baseName + " {");
         writer.println();
 
         for (String field : fields) {
-            writer.println("        final " + field + ";");
+            writer.println("        public final " + field + ";");
+        }
+
+        if (stateList != null) {
+            for (String state : stateList.split(", ")) {
+                writer.println("        public " + state + ";");
+            }
         }
 
-        writer.println("        " + className + "(" + fieldList + ") {");
+        writer.println("        public " + className + "(" + fieldList + ") {");
         for (String field : fields) {
             String name = field.split(" ")[1];
             writer.println("            this." + name + " = " + name + ";");
@@ -86,7 +98,7 @@ public class GenerateAst {
         writer.println();
 
         writer.println("        @Override");
-        writer.println("        <R> R accept(Visitor<R> visitor) {");
+        writer.println("        public <R> R accept(Visitor<R> visitor) {");
         writer.println("            return visitor.visit" + className + baseName + "(this);");
         writer.println("        }");
 
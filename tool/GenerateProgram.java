@@ -0,0 +1,43 @@
+package tool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+// Writes a large Lox program for measuring how the front end copes with
+// size: many top-level functions with loops, branches and strings in their
+// bodies, a class, and a few calls at the end, so most bodies never run.
+public class GenerateProgram {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: generate_program <functions> <output file>");
+            System.exit(64);
+        }
+        int functions = Integer.parseInt(args[0]);
+
+        PrintWriter writer = new PrintWriter(args[1], "UTF-8");
+        for (int i = 0; i < functions; i++) {
+            defineHelper(writer, i);
+        }
+        writer.println("class Registry { init() { this.count = 0; } add(x) { this.count = this.count + x; return this; } get() { return this.count; } }");
+        writer.println("var r = Registry();");
+        for (int i = 0; i < functions; i += Math.max(1, functions / 4)) {
+            writer.println("r.add(helper" + i + "(20, 3));");
+        }
+        writer.println("print r.get();");
+        writer.close();
+    }
+
+    private static void defineHelper(PrintWriter writer, int i) {
+        writer.println("fun helper" + i + "(items, key) {");
+        writer.println("  var total = 0;");
+        writer.println("  var i = 0;");
+        writer.println("  while (i < items) {");
+        writer.println("    if (i / 2 == key) { total = total + i * " + i + "; } else { total = total - 1; }");
+        writer.println("    i = i + 1;");
+        writer.println("  }");
+        writer.println("  var label = \"helper" + i + "\" + \" done\";");
+        writer.println("  if (total > 100) { return label; }");
+        writer.println("  return total;");
+        writer.println("}");
+    }
+}
@@ -0,0 +1,200 @@
+package tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs every script in a directory on each way of running one, and checks
+// what it prints against the comments in it:
+//
+//   // expect: <line>                 a line the script prints
+//   // expect error: <line>           a line a static error prints
+//   // expect runtime error: <message>  the runtime error the script ends with,
+//                                     on the line of the comment
+//
+// Each mode starts without a cache entry or a profile, except the warm ones,
+// which run the script once first so that the run checked reads both.
+public class RunTests {
+    private static final Pattern EXPECT = Pattern.compile("// expect: ?(.*)");
+    private static final Pattern EXPECT_ERROR = Pattern.compile("// expect error: (.*)");
+    private static final Pattern EXPECT_RUNTIME_ERROR = Pattern.compile("// expect runtime error: (.*)");
+
+    private static final List<Mode> MODES = Arrays.asList(
+            new Mode("default", false),
+            new Mode("--nodes", false, "--nodes"),
+            new Mode("--lazy", false, "--lazy"),
+            new Mode("warm", true),
+            new Mode("warm --nodes", true, "--nodes"));
+
+    private static int passed = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1) {
+            System.err.println("Usage: run_tests <test directory>");
+            System.exit(64);
+        }
+
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(Paths.get(args[0]))) {
+            scripts = files.filter(file -> file.toString().endsWith(".lox"))
+                    .sorted(Comparator.comparing(Path::toString))
+                    .collect(Collectors.toList());
+        }
+
+        for (Path script : scripts) {
+            Expectation expected = new Expectation(script);
+            for (Mode mode : MODES) {
+                // --lazy only checks the bodies that run, so a script that
+                // expects static errors can't give the same ones with it.
+                if (mode.skipsBodies() && expected.exitCode == 65) continue;
+                check(script, mode, expected);
+            }
+        }
+
+        System.out.println(passed + " passed, " + failed + " failed.");
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void check(Path script, Mode mode, Expectation expected) throws IOException, InterruptedException {
+        forget(script);
+        if (mode.warm) run(script, mode);
+        Result result = run(script, mode);
+        forget(script);
+
+        List<String> problems = new ArrayList<>();
+        if (!result.out.equals(expected.out)) {
+            problems.add("expected output " + expected.out + " but got " + result.out);
+        }
+        if (!result.err.equals(expected.err)) {
+            problems.add("expected errors " + expected.err + " but got " + result.err);
+        }
+        if (result.exitCode != expected.exitCode) {
+            problems.add("expected exit code " + expected.exitCode + " but got " + result.exitCode);
+        }
+
+        if (problems.isEmpty()) {
+            passed++;
+            return;
+        }
+        failed++;
+        System.out.println("FAIL " + script + " [" + mode.name + "]");
+        for (String problem : problems) {
+            System.out.println("     " + problem);
+        }
+    }
+
+    // Removes what an earlier run left beside the script, so the next one
+    // starts cold.
+    private static void forget(Path script) throws IOException {
+        Files.deleteIfExists(script.resolveSibling(script.getFileName() + ".profile"));
+        Path cache = script.resolveSibling(".loxcache");
+        if (Files.isDirectory(cache)) {
+            try (Stream<Path> entries = Files.list(cache)) {
+                for (Path entry : (Iterable<Path>) entries::iterator) {
+                    Files.delete(entry);
+                }
+            }
+            Files.delete(cache);
+        }
+    }
+
+    private static Result run(Path script, Mode mode) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("lox.Lox");
+        command.addAll(Arrays.asList(mode.flags));
+        command.add(script.toString());
+
+        File out = File.createTempFile("lox", ".out");
+        File err = File.createTempFile("lox", ".err");
+        try {
+            Process process = new ProcessBuilder(command).redirectOutput(out).redirectError(err).start();
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return new Result(Arrays.asList("<timed out>"), new ArrayList<>(), -1);
+            }
+            return new Result(lines(out.toPath()), lines(err.toPath()), process.exitValue());
+        } finally {
+            out.delete();
+            err.delete();
+        }
+    }
+
+    private static List<String> lines(Path file) throws IOException {
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    private static final class Mode {
+        final String name;
+        final boolean warm;
+        final String[] flags;
+
+        Mode(String name, boolean warm, String... flags) {
+            this.name = name;
+            this.warm = warm;
+            this.flags = flags;
+        }
+
+        boolean skipsBodies() {
+            return Arrays.asList(flags).contains("--lazy");
+        }
+    }
+
+    private static final class Expectation {
+        final List<String> out = new ArrayList<>();
+        final List<String> err = new ArrayList<>();
+        int exitCode = 0;
+
+        Expectation(Path script) throws IOException {
+            List<String> lines = lines(script);
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+
+                Matcher matcher = EXPECT_RUNTIME_ERROR.matcher(line);
+                if (matcher.find()) {
+                    err.add(matcher.group(1));
+                    err.add("[line " + (i + 1) + "]");
+                    exitCode = 70;
+                    continue;
+                }
+
+                matcher = EXPECT_ERROR.matcher(line);
+                if (matcher.find()) {
+                    out.add(matcher.group(1));
+                    exitCode = 65;
+                    continue;
+                }
+
+                matcher = EXPECT.matcher(line);
+                if (matcher.find()) out.add(matcher.group(1));
+            }
+        }
+    }
+
+    private static final class Result {
+        final List<String> out;
+        final List<String> err;
+        final int exitCode;
+
+        Result(List<String> out, List<String> err, int exitCode) {
+            this.out = out;
+            this.err = err;
+            this.exitCode = exitCode;
+        }
+    }
+}